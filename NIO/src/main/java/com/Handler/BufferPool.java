@@ -0,0 +1,56 @@
+package com.Handler;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的直接内存 Buffer 池，可被多个线程同时使用
+ * 连接只在有未处理的数据时借用 Buffer，处理完立即归还，空闲连接不占用缓冲区
+ */
+public class BufferPool {
+
+    /** 每个 Buffer 的大小 */
+    private final int bufferSize;
+    /** 池中最多保留的 Buffer 数，超过后归还的 Buffer 交给 GC 回收 */
+    private final int maxPooled;
+    /** 空闲的 Buffer */
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    /** 空闲的 Buffer 数 */
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 借用一个 Buffer
+     * @return 已清空（写模式）的 Buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还 Buffer，之后不能再使用
+     */
+    public void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
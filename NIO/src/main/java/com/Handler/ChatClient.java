@@ -1,20 +1,42 @@
 package com.Handler;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * 非阻塞客户端：所有逻辑连接共用一个 Selector，读写都在 selector 线程中完成
+ * 其他线程（如 UserInputHandler）只把消息放入连接的发送队列
+ */
 public class ChatClient {
 
     private static final String QUIT="\\quit";
+    /** 上传文件命令："\\upload 文件路径" */
+    private static final String UPLOAD="\\upload ";
+    /** 服务器发来的文件头："\\file 文件名 大小\n"，之后紧跟文件内容 */
+    private static final String FILE="\\file ";
+    /** 下载文件的存放目录 */
+    private static final Path DOWNLOAD_DIR = Paths.get("downloads");
 
     /** 服务器地址 */
     private String host;
@@ -24,26 +46,58 @@ public class ChatClient {
     private int port;
     private static final int DEFAULT_SERVER_PORT = 8888;
 
-    /** 客户端 Channel */
-    private SocketChannel client;
-    /** 监听Channel的Selector */
+    /** 逻辑连接数 */
+    private int connections;
+    private static final int DEFAULT_CONNECTIONS = 1;
+
+    /** 所有逻辑连接，第 0 个为交互连接：发送用户输入、打印收到的消息、保存收到的文件 */
+    private ClientSession[] sessions;
+    /** 监听所有连接的Selector */
     private Selector selector;
+    /** 有新数据待发送、等待 selector 线程处理的连接 */
+    private final Queue<ClientSession> pendingFlush = new ConcurrentLinkedQueue<>();
+    /** 是否已唤醒 selector 且 selector 线程尚未处理，多个连接连续发送时只唤醒一次 */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** 尚未关闭的连接数 */
+    private int openSessions;
+    /** 已建立的连接数 */
+    private int connectedSessions;
+    /** 用户已请求退出，发送队列清空后关闭客户端 */
+    private volatile boolean quitting;
 
     /** 缓冲区大小 */
     private static final int BUFFER_SIZE = 1024;
-    /** 用于从通道读取数据的 Buffer */
+    /** 用于从通道读取数据的 Buffer，所有连接共用（只在 selector 线程中使用） */
     private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    /** 用于向通道写数据的 Buffer */
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** 每次写事件中每个连接最多发送的字节数 */
+    private static final int WRITE_CHUNK = 64 * 1024;
+    /** 一次 gathering write 最多合并的消息数 */
+    private static final int GATHER_SIZE = 16;
+    /** 合并发送时使用的数组（只在 selector 线程中使用） */
+    private ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];
     /** 指定编解码方式 */
     private Charset charset = StandardCharsets.UTF_8;
 
+    /**
+     * 是否使用 TLS，通过系统属性 tls=true 开启
+     * 信任的证书通过 JSSE 的标准系统属性 javax.net.ssl.trustStore、javax.net.ssl.trustStorePassword 指定
+     */
+    private static final boolean TLS = Boolean.getBoolean("tls");
+    /** 创建每个连接的 SSLEngine */
+    private SSLContext sslContext;
+    /** TLS 连接的密文缓冲区，所有连接共用 */
+    private BufferPool netBuffers;
+
     public ChatClient() {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
     }
     public ChatClient(String host,int port){
-        this.host=host;
-        this.port=port;
+        this(host, port, DEFAULT_CONNECTIONS);
+    }
+    public ChatClient(String host, int port, int connections) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
     }
 
     private void close(Closeable closeable) {
@@ -60,98 +114,417 @@ public class ChatClient {
      */
     private void start(){
         try{
-            //创建Channel，并设置为非阻塞式调用
-            SocketChannel client = SocketChannel.open();
-            client.configureBlocking(false);
             //创建selector
-            Selector selector = Selector.open();
-            //注册 连接就绪CONNECT 事件
-            client.register(selector, SelectionKey.OP_CONNECT);
-            client.connect(new InetSocketAddress(host, port));
-            while(true){
+            selector = Selector.open();
+            if (TLS) {
+                initTls();
+            }
+            sessions = new ClientSession[connections];
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            for (int i = 0; i < connections; i++) {
+                //创建Channel，并设置为非阻塞式调用
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                ClientSession session = new ClientSession(i, channel);
+                sessions[i] = session;
+                //注册 连接就绪CONNECT 事件
+                session.setKey(channel.register(selector, SelectionKey.OP_CONNECT, session));
+                openSessions++;
+                if (channel.connect(address)) {
+                    connected(session);
+                }
+            }
+            while(openSessions > 0){
                 selector.select();
+                // 此后放入发送队列的数据需要重新唤醒 selector
+                wakeupPending.set(false);
                 Set<SelectionKey> selectionKeys=selector.selectedKeys();
                 for(SelectionKey key:selectionKeys){
                     handles(key);
                 }
                 selectionKeys.clear();
+                // 处理其他线程放入发送队列的数据
+                ClientSession session;
+                while ((session = pendingFlush.poll()) != null) {
+                    flush(session);
+                }
+                if (quitting && allFlushed()) {
+                    break;
+                }
             }
         }
         catch (IOException e){
             e.printStackTrace();
-        }catch (ClosedSelectorException e){
-            //正常退出
         }finally{
+            if (sessions != null) {
+                for (ClientSession session : sessions) {
+                    if (session != null) {
+                        session.close();
+                    }
+                }
+            }
             close(selector);
         }
 
     }
     /**
-     * 处理 CONNECT (连接就绪)和 READ （服务器转发消息）事件
+     * 处理 CONNECT (连接就绪)、READ （服务器转发消息）和 WRITE（可以继续发送）事件
      */
-    private void handles(SelectionKey key) throws IOException {
-        if (key.isConnectable()) {  // 处理 CONNECT
-            SocketChannel clientChannel = (SocketChannel) key.channel();
-            if (clientChannel.isConnectionPending()) {  // 返回true：连接已就绪
+    private void handles(SelectionKey key) {
+        ClientSession session = (ClientSession) key.attachment();
+        try {
+            if (key.isConnectable()) {  // 处理 CONNECT
                 // 结束连接状态，完成连接
-                clientChannel.finishConnect();
-                new Thread(new UserInputHandler(this)).start();
-            }
-            // 注册READ事件，以接收服务端转发的消息
-            clientChannel.register(selector, SelectionKey.OP_READ);
-
-        } else if (key.isReadable()) {  // 处理READ
-            SocketChannel clientChannel = (SocketChannel) key.channel();
-            String msg = receive(clientChannel);
-            if (msg.isEmpty()) {
-                // 服务器异常
-                close(selector);
+                if (session.getChannel().finishConnect()) {
+                    connected(session);
+                }
             } else {
-                System.out.println(msg);
+                if (key.isWritable()) {  // 处理WRITE
+                    flush(session);
+                }
+                if (key.isValid() && key.isReadable()) {  // 处理READ
+                    receive(session);
+                    if (session.getTls() != null) {
+                        // 读取时可能推进了握手：发送握手消息，或在握手完成后发送排队中的数据
+                        flush(session);
+                    }
+                }
             }
+        } catch (IOException e) {
+            System.out.println("连接[" + session.getId() + "]异常：" + e.getMessage());
+            closeSession(session);
         }
     }
+
     /**
-     * 向服务端发送信息
+     * 连接建立后，注册READ事件以接收服务端转发的消息，并发送连接前已放入队列的数据
+     */
+    private void connected(ClientSession session) throws IOException {
+        session.getKey().interestOps(SelectionKey.OP_READ);
+        if (TLS) {
+            SSLEngine engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            // 委托任务在公共线程池中执行，完成后回到 selector 线程继续握手
+            session.setTls(new TlsSession(engine, session.getChannel(), netBuffers, ForkJoinPool.commonPool(),
+                    () -> scheduleFlush(session)));
+        }
+        flush(session);
+        if (++connectedSessions == connections && connections > 1) {
+            System.out.println("已建立 " + connections + " 个连接");
+        }
+        if (session.getId() == 0) {
+            Thread inputThread = new Thread(new UserInputHandler(this));
+            inputThread.setDaemon(true);
+            inputThread.start();
+        }
+    }
+
+    private void closeSession(ClientSession session) {
+        if (session.getKey().isValid()) {
+            session.getKey().cancel();
+            session.close();
+            openSessions--;
+        }
+    }
+
+    /**
+     * 向服务端发送信息（由交互连接发送）
      * @param msg 用户输入的信息
      * @throws IOException
      */
     public void send(String msg) throws IOException {
+        if (readyToQuit(msg)) {
+            // 所有连接都通知服务器退出
+            for (int i = 0; i < connections; i++) {
+                send(i, msg);
+            }
+            // 退出命令全部入队后才标记退出，否则 selector 线程可能在入队前就认为已发送完毕
+            quitting = true;
+            // 退出命令可能已在上一轮发送完毕，唤醒 selector 检查退出条件
+            selector.wakeup();
+            return;
+        }
+        send(0, msg);
+    }
+
+    /**
+     * 通过指定的连接向服务端发送信息，可在任意线程中调用
+     * @param id 连接编号
+     * @param msg 需要发送的信息
+     * @throws IOException
+     */
+    public void send(int id, String msg) throws IOException {
         if (msg.isEmpty()) {
             return;
         }
+        if (msg.startsWith(UPLOAD)) {
+            sendFile(id, msg.substring(UPLOAD.length()).trim());
+            return;
+        }
+        // 每条消息以换行符结尾，服务器据此拆分连续发送的多条消息
+        enqueue(sessions[id], charset.encode(msg + "\n"));
+    }
+
+    /**
+     * 上传文件，文件内容由 selector 线程通过 transferTo 直接发送到 channel
+     * @param id 连接编号
+     * @param path 文件路径
+     * @throws IOException
+     */
+    private void sendFile(int id, String path) throws IOException {
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            System.out.println("文件不存在：" + path);
+            return;
+        }
+        FileChannel fileChannel = FileChannel.open(file);
+        long size = fileChannel.size();
+        ByteBuffer header = charset.encode(UPLOAD + file.getFileName() + " " + size + "\n");
+        enqueue(sessions[id], header, FileRegion.share(fileChannel, size, 1)[0]);
+    }
 
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        wBuffer.flip();
-        while (wBuffer.hasRemaining()) {
-            client.write(wBuffer);
+    /**
+     * 将数据放入连接的发送队列，并通知 selector 线程发送
+     */
+    private void enqueue(ClientSession session, Object... data) {
+        // 同一次调用的数据在队列中保持相邻，避免文件头和文件内容之间插入其他消息
+        synchronized (session) {
+            for (Object item : data) {
+                session.getSendQueue().add(item);
+            }
         }
+        scheduleFlush(session);
+    }
 
-        if (readyToQuit(msg)) {
-            close(selector);
+    /**
+     * 通知 selector 线程发送该连接的数据，可在任意线程中调用
+     */
+    private void scheduleFlush(ClientSession session) {
+        if (session.scheduleFlush()) {
+            pendingFlush.add(session);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
         }
     }
 
     /**
-     * 读取服务端转发来的消息
-     * @param clientChannel 客户端channel
-     * @return 收到的消息
+     * 发送连接队列中的数据，连续的多条消息合并为一次 gathering write
+     * 未发送完的数据留在队列中，并监听 WRITE 事件，在下一轮 select 后继续发送
+     */
+    private void flush(ClientSession session) {
+        session.clearFlushScheduled();
+        SelectionKey key = session.getKey();
+        SocketChannel channel = session.getChannel();
+        if (!key.isValid() || !channel.isConnected()) {
+            // 连接建立后再发送
+            return;
+        }
+        Queue<Object> queue = session.getSendQueue();
+        GatheringByteChannel out = session.getOutput();
+        TlsSession tls = session.getTls();
+        try {
+            if (tls != null && !tls.isHandshakeComplete()) {
+                // 握手未完成：只发送握手消息，排队中的数据等握手完成后发送
+                if (!tls.handshake()) {
+                    int ops = key.interestOps();
+                    key.interestOps(tls.hasPendingOutput() ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (tls.hasBufferedInput()) {
+                    // 握手完成前已收到的数据不会再触发 READ 事件
+                    receive(session);
+                }
+            }
+            long budget = WRITE_CHUNK;
+            Object head;
+            while (budget > 0 && (head = queue.peek()) != null) {
+                if (head instanceof FileRegion) {
+                    FileRegion region = (FileRegion) head;
+                    budget -= region.transferTo(out, budget);
+                    if (!region.isDone()) {
+                        break;
+                    }
+                    region.release();
+                    queue.poll();
+                    continue;
+                }
+                int count = 0;
+                for (Object data : queue) {
+                    if (count == GATHER_SIZE || !(data instanceof ByteBuffer)) {
+                        break;
+                    }
+                    gather[count++] = (ByteBuffer) data;
+                }
+                // TLS 连接把合并的消息加密为一条记录
+                budget -= out.write(gather, 0, count);
+                int sent = 0;
+                while (sent < count && !gather[sent].hasRemaining()) {
+                    queue.poll();
+                    sent++;
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (sent < count) {
+                    // 内核发送缓冲区已满
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("连接[" + session.getId() + "]异常：" + e.getMessage());
+            closeSession(session);
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(session.hasPendingOutput() ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 创建 SSLContext，并按 SSLSession 的记录大小分配缓冲区
+     */
+    private void initTls() throws IOException {
+        try {
+            sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("无法创建 SSLContext", e);
+        }
+        netBuffers = new BufferPool(sslContext.createSSLEngine().getSession().getPacketBufferSize(), connections);
+        // 读取的密文不超过 rBuffer 的剩余空间，rBuffer 至少要能放下一条完整的记录
+        rBuffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, netBuffers.getBufferSize()));
+    }
+
+    private boolean allFlushed() {
+        for (ClientSession session : sessions) {
+            if (session.getKey().isValid() && session.hasPendingOutput()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取服务端转发来的数据，按行拆分为消息
+     * @param session 连接
      * @throws IOException
      */
-    private String receive(SocketChannel clientChannel) throws IOException {
+    private void receive(ClientSession session) throws IOException {
         rBuffer.clear();
-        while (clientChannel.read(rBuffer) > 0);
+        int count;
+        while ((count = read(session, rBuffer)) > 0);
         rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+        if (!rBuffer.hasRemaining()) {
+            if (count < 0) {
+                // 服务器异常
+                closeSession(session);
+            }
+            return;
+        }
+        while (rBuffer.hasRemaining()) {
+            // 正在接收文件
+            if (session.isDownloading()) {
+                if (session.writeDownload(rBuffer)) {
+                    downloaded(session);
+                }
+                continue;
+            }
+            int newline = indexOf(rBuffer, (byte) '\n');
+            if (newline < 0) {
+                // 不完整的一行，等待后续数据
+                if (!session.appendLine(rBuffer)) {
+                    handleLine(session, session.getLine());
+                    session.clearLine();
+                    session.appendLine(rBuffer);
+                }
+                break;
+            }
+            ByteBuffer line = rBuffer.duplicate();
+            line.limit(newline);
+            rBuffer.position(newline + 1);
+            if (session.hasLine()) {
+                // 拼接之前收到的半行
+                if (session.appendLine(line)) {
+                    line = session.getLine();
+                } else {
+                    handleLine(session, session.getLine());
+                    session.clearLine();
+                }
+            }
+            handleLine(session, line);
+            session.clearLine();
+        }
+    }
+
+    /**
+     * 从服务端读取数据，TLS 连接读取的是解密后的明文
+     */
+    private int read(ClientSession session, ByteBuffer buffer) throws IOException {
+        TlsSession tls = session.getTls();
+        return tls != null ? tls.read(buffer) : session.getChannel().read(buffer);
+    }
+
+    /**
+     * 处理收到的一行：文件头或聊天消息
+     */
+    private void handleLine(ClientSession session, ByteBuffer line) throws IOException {
+        session.incrementReceived();
+        boolean interactive = session.getId() == 0;
+        if (startsWith(line, FILE)) {
+            String args = String.valueOf(charset.decode(line)).substring(FILE.length());
+            int space = args.lastIndexOf(' ');
+            Path path = null;
+            if (interactive) {
+                Files.createDirectories(DOWNLOAD_DIR);
+                path = DOWNLOAD_DIR.resolve(Paths.get(args.substring(0, space)).getFileName());
+            }
+            session.beginDownload(path, Long.parseLong(args.substring(space + 1)));
+            // 空文件
+            if (session.writeDownload(line)) {
+                downloaded(session);
+            }
+        } else if (interactive) {
+            System.out.println(charset.decode(line));
+        }
+    }
+
+    private void downloaded(ClientSession session) {
+        if (session.getDownloadPath() != null) {
+            System.out.println("已接收文件：" + session.getDownloadPath());
+        }
+    }
+
+    private boolean startsWith(ByteBuffer buffer, String prefix) {
+        if (buffer.remaining() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(buffer.position() + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(ByteBuffer buffer, byte b) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
     }
 
 
     public boolean readyToQuit(String msg) {
         return QUIT.equals(msg);
     }
+
+    /**
+     * @param args [服务器地址] [服务器端口] [连接数]
+     */
     public static void main(String[] args) {
-        ChatClient chatClient = new ChatClient();
+        String host = args.length > 0 ? args[0] : DEFAULT_SERVER_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS;
+        ChatClient chatClient = new ChatClient(host, port, connections);
         chatClient.start();
     }
 
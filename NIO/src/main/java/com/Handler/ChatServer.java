@@ -1,16 +1,36 @@
 package com.Handler;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatServer {
     /** 默认监听端口 */
@@ -21,19 +41,111 @@ public class ChatServer {
     /** 处理服务器端 IO 的通道 */
     private ServerSocketChannel server;
     /** 监听 channel 上发生的事件和 channel 状态的变化 */
-    private Selector selector;
+    private volatile Selector selector;
+    /** 运行事件循环的线程 */
+    private volatile Thread eventLoop;
+    /** 为 false 时事件循环退出 */
+    private volatile boolean running = true;
+    /** 其他线程提交给事件循环执行的任务（多生产者、单消费者） */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** 是否已唤醒 selector 且事件循环尚未处理，一批任务最多唤醒一次 */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** 每轮循环最多执行的任务数，避免任务过多时 IO 事件得不到处理 */
+    private static final int MAX_TASKS_PER_LOOP = 1024;
+    /** 服务端 channel 注册 ACCEPT 事件得到的 key */
+    private SelectionKey serverKey;
+
+    /** 最大连接数，达到上限后暂停 ACCEPT */
+    private static final int MAX_CONNECTIONS = 10000;
+    /** 每秒最多接入的新连接数 */
+    private static final int ACCEPT_RATE = 200;
+    /** 新连接的突发容量 */
+    private static final int ACCEPT_BURST = 50;
+    /** 每个客户端每秒最多发送的消息数 */
+    private static final int CLIENT_RATE = 10;
+    /** 每个客户端的突发容量 */
+    private static final int CLIENT_BURST = 20;
+    /** 聊天室每秒最多转发的消息数 */
+    private static final int ROOM_RATE = 1000;
+    /** 聊天室的突发容量 */
+    private static final int ROOM_BURST = 2000;
+
+    /** 已连接的客户端，key：连接 id，value：客户端 channel 的 SelectionKey */
+    private final ConnectionTable<SelectionKey> clients = new ConnectionTable<>();
+    /** 最近分配的连接 id */
+    private long lastConnectionId;
+    /** 在线用户及其连接数，同一用户可以同时有多个连接 */
+    private final Map<String, Integer> onlineUsers = new HashMap<>();
+    /** 离线消息存储 */
+    private final OfflineStore offlineStore = new OfflineStore(Paths.get("offline"));
+    /** 新连接的接入限速 */
+    private final TokenBucket acceptBucket = new TokenBucket(ACCEPT_RATE, ACCEPT_BURST);
+    /** 聊天室（所有客户端共享）的转发限速 */
+    private final TokenBucket roomBucket = new TokenBucket(ROOM_RATE, ROOM_BURST);
+    /** 聊天室人数达到该值时并行广播，可通过系统属性 fanout.threshold 配置 */
+    private static final int FAN_OUT_THRESHOLD = Integer.getInteger("fanout.threshold", 1000);
+    /** 并行广播使用的线程池 */
+    private final ForkJoinPool fanOutPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    /** 广播耗时统计 */
+    private final FanOutStats fanOutStats = new FanOutStats();
+    /** 空的 Buffer，写入 TLS 连接时只发送剩余的密文 */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /** 因超速而暂停 READ 的客户端 */
+    private final List<SelectionKey> pausedKeys = new ArrayList<>();
+    /** ACCEPT 因接入超速而暂停时，恢复的时刻；未暂停时为 -1 */
+    private long acceptResumeAt = -1;
 
     /** 缓冲区大小 */
     private static final int BUFFER_SIZE = 1024;
     /** 用于从通道读取数据的 Buffer */
     private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    /** 用于向通道写数据的 Buffer */
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** 一行的最大长度，超过后断开连接 */
+    private static final int MAX_LINE_SIZE = 64 * 1024;
+    /** 超速暂停时保存的未处理数据的上限：暂停后不再读取，最多是半行加一次读取的数据，超过后断开连接 */
+    private static final int MAX_BACKLOG_SIZE = 2 * MAX_LINE_SIZE;
+
+    /** 每次读写事件中最多传输的文件字节数，避免大文件传输阻塞其他客户端的聊天消息 */
+    private static final int FILE_CHUNK = 64 * 1024;
+    /** 用于接收上传文件的 Buffer */
+    private ByteBuffer fileBuffer = ByteBuffer.allocateDirect(FILE_CHUNK);
+    /** 上传文件的大小上限 */
+    private static final long MAX_FILE_SIZE = 1L << 30;
+    /** 上传文件的存放目录 */
+    private static final Path FILE_DIR = Paths.get("files");
+    /** 上传过程中临时文件的后缀 */
+    private static final String PART_SUFFIX = ".part";
+    /** 文件名的最大长度 */
+    private static final int MAX_FILE_NAME_LENGTH = 255;
+
+    /**
+     * 是否使用 TLS，通过系统属性 tls=true 开启
+     * 证书通过 JSSE 的标准系统属性 javax.net.ssl.keyStore、javax.net.ssl.keyStorePassword 指定
+     */
+    private static final boolean TLS = Boolean.getBoolean("tls");
+    /** TLS 连接空闲时最多保留的密文缓冲区数 */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    /** 创建每个连接的 SSLEngine */
+    private SSLContext sslContext;
+    /** TLS 连接的密文缓冲区，所有连接共用 */
+    private BufferPool netBuffers;
 
     /** 客户端退出命令 */
     private static final String QUIT = "\\quit";
+    /** 登录命令："\\login 用户名"，登录后离线期间的消息会在下次登录时送达 */
+    private static final String LOGIN = "\\login ";
+    /** 用户名的最大长度 */
+    private static final int MAX_USER_LENGTH = 32;
+    /** 上传文件命令："\\upload 文件名 大小\n"，之后紧跟文件内容 */
+    private static final String UPLOAD = "\\upload ";
+    /** 下载文件命令："\\download 文件名" */
+    private static final String DOWNLOAD = "\\download ";
+    /** 发给客户端的文件头："\\file 文件名 大小\n"，之后紧跟文件内容 */
+    private static final String FILE = "\\file ";
     /** 指定编解码方式 */
     private Charset charset = StandardCharsets.UTF_8;
+    /** 是否在控制台打印聊天消息，可通过系统属性 log.messages 配置；打印需要解码，关闭后转发聊天消息时不再解码 */
+    private static final boolean LOG_MESSAGES = Boolean.parseBoolean(System.getProperty("log.messages", "true"));
 
     public ChatServer() {
         this(DEFAULT_PORT);
@@ -43,9 +155,9 @@ public class ChatServer {
         this.port=port;
     }
     /**
-     * 服务端主逻辑
+     * 服务端主逻辑，在调用线程中运行事件循环，直到 stop()
      */
-    private void start() {
+    void start() {
         try {
             // 创建一个新的通道，并设置为非阻塞式调用（open()方法产生的通道默认为阻塞式调用）
             server = ServerSocketChannel.open();
@@ -53,113 +165,906 @@ public class ChatServer {
 
             // 绑定监听端口
             server.socket().bind(new InetSocketAddress(port));
+            Files.createDirectories(FILE_DIR);
+            offlineStore.open();
+            if (TLS) {
+                initTls();
+            }
 
             // 创建Selector
             selector = Selector.open();
             // 在selector上注册serverChannel的accept事件
-            server.register(selector, SelectionKey.OP_ACCEPT);
+            serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("启动服务器，监听端口：" + port + "...");
 
-            while (true) {
-                // select()方法为阻塞式调用，如果当前没有selector监听事件出现，则该方法阻塞（返回值为出现事件的数量）
-                selector.select();
+            eventLoop = Thread.currentThread();
+            while (running) {
+                if (!tasks.isEmpty()) {
+                    // 还有待执行的任务：只检查已就绪的事件，不阻塞
+                    selector.selectNow();
+                } else {
+                    // select()方法为阻塞式调用，如果当前没有selector监听事件出现，则该方法阻塞（返回值为出现事件的数量）
+                    // 有被暂停的事件时，最多阻塞到最早的恢复时刻
+                    long timeout = pauseTimeout(System.nanoTime());
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.select();
+                    }
+                }
+                // 此后提交的任务需要重新唤醒 selector
+                wakeupPending.set(false);
                 // 获取所有被触发Channel的SelectionKey集合
                 Set<SelectionKey> selectionKeys = selector.selectedKeys();
                 for (SelectionKey key : selectionKeys) {
-                    // 处理被触发的事件
-                    handles(key);
+                    // 处理被触发的事件；单个连接的异常只断开该连接，不能结束事件循环
+                    try {
+                        handles(key);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        if (key.isValid() && key.attachment() instanceof Connection) {
+                            disconnect(key, (Connection) key.attachment());
+                        }
+                    }
                 }
                 selectionKeys.clear();
+                runTasks();
+                resumePaused(System.nanoTime());
             }
 
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            // 关闭selector：解除注册，同时关闭对应的通道
+            // 关闭所有客户端和服务端的通道，再关闭selector
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    close(key.channel());
+                }
+            }
+            close(server);
             close(selector);
         }
     }
 
+    /**
+     * 停止服务器：事件循环在下一次唤醒时退出并关闭所有连接，可在任意线程中调用
+     */
+    void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
 
 
     /**
-     * 需要处理两个事件：ACCEPT & READ
+     * 在事件循环中执行任务，可在任意线程中调用
+     * 连续提交的多个任务只唤醒一次 selector，在事件循环内提交则不唤醒
+     * @param task 任务，运行在 selector 线程中，可以直接操作 channel 和 SelectionKey
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        Selector s = selector;
+        if (s != null && Thread.currentThread() != eventLoop && wakeupPending.compareAndSet(false, true)) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * 执行其他线程提交的任务，每轮最多执行 MAX_TASKS_PER_LOOP 个
+     */
+    private void runTasks() {
+        Runnable task;
+        for (int i = 0; i < MAX_TASKS_PER_LOOP && (task = tasks.poll()) != null; i++) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 需要处理三个事件：ACCEPT & READ & WRITE
      */
     private void handles(SelectionKey key) throws IOException {
         // ACCEPT事件 --- 和客户端建立了连接
         if (key.isAcceptable()) {
+            long now = System.nanoTime();
+            // 接入超速：暂停 ACCEPT，新连接留在内核的 backlog 中
+            if (!acceptBucket.tryAcquire(now)) {
+                acceptResumeAt = now + acceptBucket.nanosUntilAvailable(now);
+                updateAcceptInterest();
+                return;
+            }
             ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
             // 获得连接进来的客户端的channel
             SocketChannel clientChannel = serverChannel.accept();
+            if (clientChannel == null) {
+                return;
+            }
             // 转换为非阻塞式调用
             clientChannel.configureBlocking(false);
 
-            // 注册该客户端channel的READ事件
-            clientChannel.register(selector, SelectionKey.OP_READ);
+            // 注册该客户端channel的READ事件，并附加该连接的状态
+            Connection connection = new Connection(++lastConnectionId, clientChannel,
+                    new TokenBucket(CLIENT_RATE, CLIENT_BURST), charset.encode(getClientName(clientChannel) + ":"));
+            SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ, connection);
+            if (TLS) {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                // 委托任务在公共线程池中执行，完成后回到事件循环继续握手
+                connection.setTls(new TlsSession(engine, clientChannel, netBuffers, ForkJoinPool.commonPool(),
+                        () -> execute(() -> flush(clientKey, connection))));
+            }
+            clients.put(connection.getId(), clientKey);
+            updateAcceptInterest();
             System.out.println(getClientName(clientChannel) + "已连接");
         }
 
-        // READ事件 --- 客户端发送了消息
-        else if (key.isReadable()) {
-            SocketChannel clientChannel = (SocketChannel) key.channel();
-            String fwdMsg = receive(clientChannel);
-            if (fwdMsg.isEmpty() || readyToQuit(fwdMsg)) { // 客户端异常 or 客户端准备退出
-                // 取消注册该通道上的该事件
-                key.cancel();
-                // 更改状态后，强制返回selector，令其重新检测
-                selector.wakeup();
-                System.out.println(getClientName(clientChannel) + "已断开");
-            } else {
-                System.out.println(getClientName(clientChannel) + ":" + fwdMsg);
-                forwardMessage(clientChannel, fwdMsg);
+        else {
+            Connection connection = (Connection) key.attachment();
+
+            // WRITE事件 --- 客户端可以继续接收数据，发送排队中的消息和文件
+            if (key.isWritable()) {
+                flush(key, connection);
+            }
+
+            // READ事件 --- 客户端发送了消息
+            if (key.isValid() && key.isReadable()) {
+                try {
+                    // 正在上传文件：直接写入磁盘，不计入消息限速
+                    if (connection.isUploading()) {
+                        receiveFile(key, connection);
+                        return;
+                    }
+                    // 每一行消息在 process 中获取令牌，超速时暂停读取
+                    receiveAndProcess(key, connection);
+                } catch (IOException e) {
+                    // 连接被重置或 TLS 握手失败
+                    System.out.println(getClientName(connection.getChannel()) + "异常：" + e.getMessage());
+                    if (key.isValid()) {
+                        disconnect(key, connection);
+                    }
+                }
             }
         }
     }
 
     /**
-     * 读取客户端发来的消息
-     * @param clientChannel 客户端 channel
-     * @return 发来的消息
+     * 读取并处理客户端发来的数据
+     */
+    private void receiveAndProcess(SelectionKey key, Connection connection) throws IOException {
+        if (connection.hasBacklog() && !processBacklog(key, connection)) {
+            // 仍然超速：不读取 socket，之后的数据留在内核缓冲区中，由 TCP 反压给客户端
+            return;
+        }
+        if (receive(connection) < 0) { // 客户端异常
+            disconnect(key, connection);
+            return;
+        }
+        processInput(key, connection, rBuffer);
+        if (connection.getTls() != null) {
+            // 读取时可能推进了握手：发送握手消息，或在握手完成后发送排队中的数据
+            flush(key, connection);
+        }
+    }
+
+    /**
+     * 处理超速暂停时保存的数据，不从 socket 读取
+     * @return true：已处理完，剩余的最多是半行，可以继续读取
+     */
+    private boolean processBacklog(SelectionKey key, Connection connection) throws IOException {
+        boolean done = process(key, connection, connection.getInput());
+        if (!key.isValid()) {
+            return false;
+        }
+        connection.compactInput();
+        connection.setBacklog(!done);
+        return done;
+    }
+
+    /**
+     * 提交到事件循环中读取并处理数据，用于不会再触发 READ 事件的已缓存数据
+     */
+    private void processLater(SelectionKey key, Connection connection) {
+        execute(() -> {
+            try {
+                if (key.isValid()) {
+                    receiveAndProcess(key, connection);
+                }
+            } catch (IOException e) {
+                if (key.isValid()) {
+                    disconnect(key, connection);
+                }
+            }
+        });
+    }
+
+    /**
+     * 从客户端读取数据，TLS 连接读取的是解密后的明文
+     */
+    private int read(Connection connection, ByteBuffer buffer) throws IOException {
+        TlsSession tls = connection.getTls();
+        return tls != null ? tls.read(buffer) : connection.getChannel().read(buffer);
+    }
+
+    /**
+     * 创建 SSLContext，并按 SSLSession 的记录大小分配缓冲区
+     */
+    private void initTls() throws IOException {
+        try {
+            sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("无法创建 SSLContext", e);
+        }
+        SSLEngine probe = sslContext.createSSLEngine();
+        netBuffers = new BufferPool(probe.getSession().getPacketBufferSize(), MAX_POOLED_BUFFERS);
+        // 读取的密文不超过 rBuffer 的剩余空间，rBuffer 至少要能放下一条完整的记录
+        rBuffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, netBuffers.getBufferSize()));
+        System.out.println("已启用 TLS：" + String.join(",", probe.getEnabledProtocols()));
+    }
+
+    /**
+     * 处理读取到的数据：只处理完整的行，末尾的半行保存在连接中，与之后读取的数据拼接
+     * 因此跨两次读取的消息、多字节字符和上传命令都不会被拆开
+     * 超速暂停时，尚未处理的全部数据都保存在连接中，恢复后按原来的顺序继续处理，处理完之前不再读取
+     */
+    private void processInput(SelectionKey key, Connection connection, ByteBuffer buffer) throws IOException {
+        boolean done = true;
+        if (connection.hasInput()) {
+            // 保存的数据在前：拼接本次读取的数据到第一个换行符为止，其余部分不必复制
+            int newline = indexOf(buffer, (byte) '\n');
+            ByteBuffer head = buffer.duplicate();
+            head.limit(newline < 0 ? buffer.limit() : newline + 1);
+            buffer.position(head.limit());
+            connection.appendInput(head);
+            done = process(key, connection, connection.getInput());
+            connection.compactInput();
+        }
+        if (done && key.isValid()) {
+            done = process(key, connection, buffer);
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        connection.appendInput(buffer);
+        connection.setBacklog(!done);
+        // 处理完时剩余的是一直没有换行符的半行；暂停时同样限制保存的数据量
+        if (connection.getInputSize() > (done ? MAX_LINE_SIZE : MAX_BACKLOG_SIZE)) {
+            System.out.println(getClientName(connection.getChannel()) + "消息过长");
+            disconnect(key, connection);
+        }
+    }
+
+    /**
+     * 处理客户端发来的完整的行：每行是一条消息或命令，上传命令之后紧跟文件内容
+     * 每一行需获取客户端和聊天室的令牌，文件内容不计入限速
+     * @return true：已处理到最后一个换行符，剩余的是半行；false：令牌不足，已暂停读取，剩余数据尚未处理
+     */
+    private boolean process(SelectionKey key, Connection connection, ByteBuffer buffer) throws IOException {
+        long now = System.nanoTime();
+        while (buffer.hasRemaining() && key.isValid()) {
+            if (connection.isUploading()) {
+                if (connection.writeUpload(buffer)) {
+                    endUpload(key, connection);
+                }
+                continue;
+            }
+            int newline = indexOf(buffer, (byte) '\n');
+            if (newline < 0) {
+                // 不完整的一行，等待后续数据
+                return true;
+            }
+            if (newline > buffer.position() && !tryAcquire(connection, now)) {
+                // 客户端或聊天室超速：停止处理并暂停读取，剩余数据由调用方保存到连接中
+                pauseRead(key, connection, now);
+                return false;
+            }
+            ByteBuffer line = buffer.duplicate();
+            line.limit(newline);
+            buffer.position(newline + 1);
+            if (startsWith(line, UPLOAD)) {
+                beginUpload(key, connection, line);
+            } else if (line.hasRemaining()) {
+                handleMessage(key, connection, line);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 处理一条聊天消息或命令
+     * 命令直接比较字节，聊天消息按字节转发，只有服务器需要查看文本时才解码
+     */
+    private void handleMessage(SelectionKey key, Connection connection, ByteBuffer line) throws IOException {
+        if (readyToQuit(line)) { // 客户端准备退出
+            disconnect(key, connection);
+        } else if (startsWith(line, DOWNLOAD)) {
+            line.position(line.position() + DOWNLOAD.length());
+            sendFile(key, connection.getDecoder().decode(line).toString().trim());
+        } else if (startsWith(line, LOGIN)) {
+            line.position(line.position() + LOGIN.length());
+            login(key, connection, connection.getDecoder().decode(line).toString().trim());
+        } else {
+            if (LOG_MESSAGES) {
+                System.out.println(getClientName(connection.getChannel()) + ":" + connection.getDecoder().decode(line.duplicate()));
+            }
+            forwardMessage(connection, line);
+        }
+    }
+
+    /**
+     * 用户登录：该用户第一个连接上线时，分批取回离线期间的消息
+     * 消息在存储线程中读取，每批通过 execute() 交回事件循环发送
+     */
+    private void login(SelectionKey key, Connection connection, String user) {
+        if (connection.getUser() != null || user.isEmpty() || user.length() > MAX_USER_LENGTH) {
+            send(key, charset.encode("登录失败：" + user + "\n"));
+            return;
+        }
+        connection.setUser(user);
+        System.out.println(getClientName(connection.getChannel()) + "登录：" + user);
+        if (onlineUsers.merge(user, 1, Integer::sum) == 1) {
+            // 取回期间发给该客户端的新数据暂存在连接中，排在离线消息之后发送
+            synchronized (connection) {
+                connection.hold();
+            }
+            offlineStore.drain(user, batch -> execute(() -> {
+                for (byte[] msg : batch) {
+                    enqueue(key, ByteBuffer.wrap(msg));
+                }
+            })).whenComplete((v, e) -> execute(() -> releaseHeld(key, connection)));
+        }
+    }
+
+    /**
+     * 离线消息已全部加入发送队列：取回期间暂存的数据排在其后发送
+     */
+    private void releaseHeld(SelectionKey key, Connection connection) {
+        synchronized (connection) {
+            Queue<Object> held = connection.unhold();
+            if (held != null) {
+                for (Object data : held) {
+                    enqueue(key, data);
+                }
+            }
+        }
+    }
+
+    /**
+     * 用户的最后一个连接断开后，此后的消息保存到其离线邮箱
+     */
+    private void logout(Connection connection) {
+        String user = connection.getUser();
+        if (user != null && onlineUsers.merge(user, -1, Integer::sum) == 0) {
+            onlineUsers.remove(user);
+            offlineStore.offline(user);
+        }
+    }
+
+    /**
+     * 断开客户端连接
+     */
+    private void disconnect(SelectionKey key, Connection connection) {
+        // 取消注册该通道上的该事件（在 selector 线程中调用，下一次 select 时生效，无需 wakeup）
+        key.cancel();
+        System.out.println(getClientName(connection.getChannel()) + "已断开");
+        // TLS 连接先尽力发送 close_notify 再关闭 channel
+        close(connection.getOutput());
+        connection.release();
+        clients.remove(connection.getId());
+        logout(connection);
+        updateAcceptInterest();
+    }
+
+    /**
+     * 读取客户端发来的数据，读取后 rBuffer 处于读模式
+     * @param connection 客户端连接
+     * @return 读取的字节数，-1 表示客户端已关闭连接
      * @throws IOException
      */
-    private String receive(SocketChannel clientChannel) throws IOException{
+    private int receive(Connection connection) throws IOException{
         // 将rBuffer转为写模式（起到清空的作用）
         rBuffer.clear();
         // 从clientChannel中读取数据，写入rBuffer，直至channel中没有数据可读
-        while(clientChannel.read(rBuffer)>0);
+        int count;
+        int total = 0;
+        while((count = read(connection, rBuffer))>0) {
+            total += count;
+        }
         // 将rBuffer从写模式转换为读模式
         rBuffer.flip();
-        // 使用utf8编码解码rBuffer，并转为字符串类型
-        return String.valueOf(charset.decode(rBuffer));
+        return total == 0 && count < 0 ? -1 : total;
+    }
 
+    /**
+     * 解析上传命令的文件头，之后的数据为文件内容
+     * @param header 不含换行符的文件头
+     */
+    private void beginUpload(SelectionKey key, Connection connection, ByteBuffer header) throws IOException {
+        header.position(header.position() + UPLOAD.length());
+        String args = connection.getDecoder().decode(header).toString().trim();
+        int space = args.lastIndexOf(' ');
+        long size;
+        try {
+            size = Long.parseLong(args.substring(space + 1));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (space < 0 || size < 0) {
+            // 无法确定文件内容的长度，后续数据无法解析
+            disconnect(key, connection);
+            return;
+        }
+        String name = args.substring(0, space).trim();
+        Path path = null;
+        if (size > MAX_FILE_SIZE || resolveFile(name) == null) {
+            // 文件不可接收：读取并丢弃文件内容
+            send(key, charset.encode("上传失败：" + name + "\n"));
+        } else {
+            // 临时文件名对每个上传唯一，同名文件的并发上传互不干扰；以 . 开头，不能被下载
+            path = Files.createTempFile(FILE_DIR, ".upload-" + connection.getId() + "-", PART_SUFFIX);
+        }
+        connection.beginUpload(name, path, size);
+        if (size == 0) {
+            endUpload(key, connection);
+        }
+    }
+
+    /**
+     * 接收上传文件的后续内容，每次最多接收 FILE_CHUNK 字节
+     */
+    private void receiveFile(SelectionKey key, Connection connection) throws IOException {
+        long received = 0;
+        while (received < FILE_CHUNK && connection.isUploading() && key.isValid()) {
+            fileBuffer.clear();
+            int count = read(connection, fileBuffer);
+            if (count < 0) {
+                disconnect(key, connection);
+                return;
+            }
+            if (count == 0) {
+                return;
+            }
+            received += count;
+            fileBuffer.flip();
+            // 文件之后的数据是普通消息
+            processInput(key, connection, fileBuffer);
+        }
+    }
+
+    /**
+     * 文件接收完毕，保存并转发给其他客户端
+     */
+    private void endUpload(SelectionKey key, Connection connection) throws IOException {
+        String name = connection.getUploadName();
+        Path part = connection.endUpload();
+        if (part == null) {
+            return;
+        }
+        Path path = FILE_DIR.resolve(name);
+        Files.move(part, path, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println(getClientName(connection.getChannel()) + "上传文件：" + name);
+
+        // 转发文件给其他客户端
+        List<SelectionKey> recipients = new ArrayList<>(clients.size());
+        clients.forEach((id, other) -> {
+            if (id != connection.getId()) {
+                recipients.add(other);
+            }
+        });
+        if (recipients.isEmpty()) {
+            return;
+        }
+        FileChannel file = FileChannel.open(path);
+        long size = file.size();
+        ByteBuffer header = charset.encode(FILE + name + " " + size + "\n");
+        FileRegion[] regions = FileRegion.share(file, size, recipients.size());
+        sendInOrder(connection, () -> {
+            for (int i = 0; i < regions.length; i++) {
+                send(recipients.get(i), header.duplicate());
+                send(recipients.get(i), regions[i]);
+            }
+        });
+    }
+
+    /**
+     * 在事件循环中执行 sends，排在 sender 正在进行的并行广播之后，保证同一发送者的消息和文件按顺序到达
+     * 之后该发送者的广播排在 sends 之后
+     */
+    private void sendInOrder(Connection sender, Runnable sends) {
+        CompletableFuture<Void> previous = sender.getFanOut();
+        if (previous == null || previous.isDone()) {
+            sends.run();
+            return;
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        previous.whenComplete((v, e) -> execute(() -> {
+            try {
+                sends.run();
+            } finally {
+                done.complete(null);
+            }
+        }));
+        sender.setFanOut(done);
+    }
+
+    /**
+     * 发送服务器保存的文件给客户端
+     * @param key 请求下载的客户端
+     * @param name 文件名
+     */
+    private void sendFile(SelectionKey key, String name) throws IOException {
+        Path path = resolveFile(name);
+        if (path == null || !Files.isRegularFile(path)) {
+            send(key, charset.encode("文件不存在：" + name + "\n"));
+            return;
+        }
+        FileChannel file = FileChannel.open(path);
+        long size = file.size();
+        send(key, charset.encode(FILE + name + " " + size + "\n"));
+        send(key, FileRegion.share(file, size, 1)[0]);
+    }
+
+    /**
+     * 将数据加入客户端的发送队列，队列原本为空时立即尝试发送
+     * @param key 客户端的 key
+     * @param data ByteBuffer、FileRegion 或广播的送达标记
+     */
+    private void send(SelectionKey key, Object data) {
+        Connection connection = (Connection) key.attachment();
+        synchronized (connection) {
+            if (key.isValid() && connection.isHolding()) {
+                // 正在取回离线消息
+                connection.getHeld().add(data);
+                return;
+            }
+            enqueue(key, data);
+        }
+    }
+
+    /**
+     * 将数据加入客户端的发送队列，不经过暂存，用于发送取回的离线消息
+     */
+    private void enqueue(SelectionKey key, Object data) {
+        Connection connection = (Connection) key.attachment();
+        if (!key.isValid()) {
+            // 客户端已断开
+            if (data instanceof FileRegion) {
+                ((FileRegion) data).release();
+            } else if (data instanceof FanOutStats.Broadcast) {
+                ((FanOutStats.Broadcast) data).delivered();
+            }
+            return;
+        }
+        synchronized (connection) {
+            Queue<Object> outbound = connection.getOutbound();
+            outbound.add(data);
+            if (outbound.size() == 1) {
+                flush(key, connection);
+            }
+        }
+    }
+
+    /**
+     * 并行广播的线程中调用：将消息及其送达标记加入客户端的发送队列，队列原本为空时直接写入 channel
+     * 工作线程不修改 interestOps，写不完或写入出错的客户端放入 pending，广播结束后交给事件循环处理
+     */
+    private void offer(SelectionKey key, ByteBuffer msg, FanOutStats.Broadcast broadcast, Queue<SelectionKey> pending) {
+        Connection connection = (Connection) key.attachment();
+        synchronized (connection) {
+            if (!key.isValid()) {
+                return;
+            }
+            broadcast.add();
+            if (connection.isHolding()) {
+                // 正在取回离线消息，由事件循环在取回结束后发送
+                connection.getHeld().add(msg);
+                connection.getHeld().add(broadcast);
+                return;
+            }
+            Queue<Object> outbound = connection.getOutbound();
+            outbound.add(msg);
+            outbound.add(broadcast);
+            if (outbound.size() > 2) {
+                // 前面还有数据，已由事件循环监听 WRITE 事件或等待 pending 处理
+                return;
+            }
+            try {
+                // TLS 连接在此用该连接的密钥加密，握手未完成时不写入
+                connection.getOutput().write(msg);
+            } catch (IOException e) {
+                // 由事件循环 flush 时再次出错并断开连接
+                pending.add(key);
+                return;
+            }
+            if (msg.hasRemaining() || connection.hasPendingOutput()) {
+                pending.add(key);
+            } else {
+                outbound.poll();
+                outbound.poll();
+                broadcast.delivered();
+            }
+        }
+    }
+
+    /**
+     * 按顺序发送队列中的数据，每次最多发送 FILE_CHUNK 字节
+     * 未发送完的数据留在队列中，并监听 WRITE 事件，在下一轮 select 后继续发送
+     */
+    private void flush(SelectionKey key, Connection connection) {
+        synchronized (connection) {
+            if (key.isValid()) {
+                doFlush(key, connection);
+            }
+        }
+    }
+
+    private void doFlush(SelectionKey key, Connection connection) {
+        Queue<Object> outbound = connection.getOutbound();
+        WritableByteChannel out = connection.getOutput();
+        TlsSession tls = connection.getTls();
+        try {
+            if (tls != null && !tls.isHandshakeComplete()) {
+                // 握手未完成：只发送握手消息，排队中的数据等握手完成后发送
+                if (!tls.handshake()) {
+                    int ops = key.interestOps();
+                    key.interestOps(tls.hasPendingOutput() ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (tls.hasBufferedInput()) {
+                    // 握手完成前已收到的应用数据不会再触发 READ 事件
+                    processLater(key, connection);
+                }
+            }
+            long budget = FILE_CHUNK;
+            Object data;
+            while (budget > 0 && (data = outbound.peek()) != null) {
+                boolean done;
+                if (data instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) data;
+                    budget -= out.write(buffer);
+                    done = !buffer.hasRemaining();
+                } else if (data instanceof FanOutStats.Broadcast) {
+                    // 之前的广播消息已写入：TLS 连接还需发送完剩余的密文
+                    if (connection.hasPendingOutput()) {
+                        out.write(EMPTY);
+                    }
+                    done = !connection.hasPendingOutput();
+                    if (done) {
+                        ((FanOutStats.Broadcast) data).delivered();
+                    }
+                } else {
+                    // 文件内容通过 transferTo 直接从页缓存发送到 socket；TLS 连接需要加密，由 JDK 经临时缓冲区读出后写入
+                    FileRegion region = (FileRegion) data;
+                    budget -= region.transferTo(out, budget);
+                    done = region.isDone();
+                    if (done) {
+                        region.release();
+                    }
+                }
+                if (!done) {
+                    // 内核发送缓冲区已满或本次额度已用完
+                    break;
+                }
+                outbound.poll();
+            }
+        } catch (IOException e) {
+            // 客户端异常
+            disconnect(key, connection);
+            return;
+        }
+        int ops = key.interestOps();
+        boolean pending = !outbound.isEmpty() || connection.hasPendingOutput();
+        key.interestOps(pending ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
     }
 
     /**
      * 转发消息给其他客户端
-     * @param clientChannel 发来消息的客户端 channel
-     * @param fwdMsg 需要转发的消息
-     * @throws IOException
+     * @param sender 发来消息的客户端
+     * @param line 需要转发的消息（UTF-8 字节，不解码）
+     */
+    private void forwardMessage(Connection sender, ByteBuffer line) {
+        // 拼接发送者名称和消息，各个客户端共用同一份数据；以换行符结尾，客户端据此拆分连续收到的多条消息
+        ByteBuffer prefix = sender.getNamePrefix();
+        ByteBuffer msg = ByteBuffer.allocate(prefix.remaining() + line.remaining() + 1);
+        msg.put(prefix.duplicate());
+        msg.put(line);
+        msg.put((byte) '\n');
+        msg.flip();
+        // 保存到离线用户的邮箱（由存储线程写入磁盘，msg 之后不再被修改）
+        offlineStore.append(msg.array());
+
+        int recipients = clients.size() - 1;
+        CompletableFuture<Void> previous = sender.getFanOut();
+        boolean idle = previous == null || previous.isDone();
+        if (recipients < FAN_OUT_THRESHOLD && idle) {
+            // 顺序扫描连接表，只要不是发送消息的客户端；最后一个收件人写入完成时记录耗时
+            FanOutStats.Broadcast broadcast = fanOutStats.begin(false);
+            clients.forEach((id, key) -> {
+                if (id != sender.getId()) {
+                    broadcast.add();
+                    send(key, msg.duplicate());
+                    send(key, broadcast);
+                }
+            });
+            sender.setFanOut(null);
+            broadcast.delivered();
+            return;
+        }
+
+        // 人数较多（或该发送者上一条消息仍在并行广播）时，按槽位区间拆分给 fanOutPool 的多个线程
+        // 快照在此时取得，广播的收件人与串行广播时相同
+        ConnectionTable.Snapshot<SelectionKey> snapshot = clients.snapshot();
+        long senderId = sender.getId();
+        FanOutStats.Broadcast broadcast = fanOutStats.begin(true);
+        Runnable fanOut = () -> {
+            try {
+                Queue<SelectionKey> pending = new ConcurrentLinkedQueue<>();
+                // 已在 fanOutPool 的线程中，子任务 fork 到同一个线程池
+                new FanOutTask<>(snapshot, (id, key) -> {
+                    if (id != senderId) {
+                        offer(key, msg.duplicate(), broadcast, pending);
+                    }
+                }, fanOutPool.getParallelism()).invoke();
+                if (!pending.isEmpty()) {
+                    // 一次广播只提交一个任务，由事件循环继续发送或断开出错的客户端
+                    execute(() -> {
+                        for (SelectionKey key : pending) {
+                            flush(key, (Connection) key.attachment());
+                        }
+                    });
+                }
+            } catch (RuntimeException e) {
+                // 不影响该发送者之后的广播
+                e.printStackTrace();
+            }
+            broadcast.delivered();
+        };
+        // 同一发送者的消息排在上一条之后，不同发送者的广播可以同时进行
+        sender.setFanOut(idle ? CompletableFuture.runAsync(fanOut, fanOutPool)
+                : previous.thenRunAsync(fanOut, fanOutPool));
+    }
+
+    /**
+     * 解析客户端给出的文件名
+     * @return FILE_DIR 下的路径，文件名不合法时返回 null
+     */
+    private Path resolveFile(String name) {
+        if (!isValidFileName(name)) {
+            return null;
+        }
+        try {
+            return FILE_DIR.resolve(name);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 文件名不能为空、不能以 . 开头、不能是临时文件，不能包含路径分隔符和控制字符（如 NUL）
+     */
+    private boolean isValidFileName(String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.endsWith(PART_SUFFIX) || name.length() > MAX_FILE_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == 0x7F || c == '/' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(ByteBuffer buffer, String prefix) {
+        if (buffer.remaining() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(buffer.position() + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(ByteBuffer buffer, byte b) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 获取一条消息的令牌：需同时获得客户端和聊天室的令牌，聊天室超速时归还客户端的令牌
+     * @return true：获取成功
      */
-    private void forwardMessage(SocketChannel clientChannel, String fwdMsg) throws IOException{
-        // keys()返回所有注册过的SelectionKey
-        for(SelectionKey key:selector.keys()){
-            // key有效并且是客户端socket
-            if(key.isValid() && key.channel() instanceof SocketChannel){
-                SocketChannel connectedClient = (SocketChannel) key.channel();
-                //只要不是发送消息的客户端
-                if(!connectedClient.equals(clientChannel)){
-                    wBuffer.clear();
-                    // 将需要转发的消息写进wBuffer，注意使用utf8编码
-                    wBuffer.put(charset.encode(getClientName(clientChannel)+":"+fwdMsg));
-                    // 将wBuffer从写入模式转换为读取模式
-                    wBuffer.flip();
-                    while(wBuffer.hasRemaining()){
-                        connectedClient.write(wBuffer);
+    private boolean tryAcquire(Connection connection, long now) {
+        if (!connection.getBucket().tryAcquire(now)) {
+            return false;
+        }
+        if (roomBucket.tryAcquire(now)) {
+            return true;
+        }
+        connection.getBucket().release();
+        return false;
+    }
+
+    /**
+     * 暂停客户端的 READ 事件，直到令牌可用；已暂停时只更新恢复时刻
+     */
+    private void pauseRead(SelectionKey key, Connection connection, long now) {
+        long wait = Math.max(connection.getBucket().nanosUntilAvailable(now), roomBucket.nanosUntilAvailable(now));
+        if (connection.getResumeAt() == -1) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            pausedKeys.add(key);
+        }
+        connection.setResumeAt(now + wait);
+    }
+
+    /**
+     * 恢复已到期的 READ / ACCEPT 事件
+     */
+    private void resumePaused(long now) {
+        for (int i = pausedKeys.size() - 1; i >= 0; i--) {
+            SelectionKey key = pausedKeys.get(i);
+            boolean valid = key.isValid();
+            if (!valid || ((Connection) key.attachment()).getResumeAt() - now <= 0) {
+                // 用最后一个元素覆盖，避免移动整个列表
+                pausedKeys.set(i, pausedKeys.get(pausedKeys.size() - 1));
+                pausedKeys.remove(pausedKeys.size() - 1);
+                if (valid) {
+                    Connection connection = (Connection) key.attachment();
+                    connection.setResumeAt(-1);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    if (connection.hasBacklog()) {
+                        // 暂停前未处理的数据已读出，内核缓冲区中可能没有新数据，不一定触发 READ 事件
+                        processLater(key, connection);
                     }
                 }
+            }
+        }
+        if (acceptResumeAt != -1 && acceptResumeAt - now <= 0) {
+            acceptResumeAt = -1;
+            updateAcceptInterest();
+        }
+    }
 
+    /**
+     * 计算 select 的超时时间
+     * @return 距离最早的恢复时刻的毫秒数，0 表示没有被暂停的事件
+     */
+    private long pauseTimeout(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (SelectionKey key : pausedKeys) {
+            if (key.isValid()) {
+                earliest = Math.min(earliest, ((Connection) key.attachment()).getResumeAt() - now);
+            } else {
+                earliest = 0;
             }
         }
+        if (acceptResumeAt != -1) {
+            earliest = Math.min(earliest, acceptResumeAt - now);
+        }
+        if (earliest == Long.MAX_VALUE) {
+            return 0;
+        }
+        // 至少等待 1ms，避免 select(0) 变成无限阻塞
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest) + 1);
+    }
+
+    /**
+     * 未达到连接上限且没有接入超速时才监听 ACCEPT
+     */
+    private void updateAcceptInterest() {
+        boolean accept = clients.size() < MAX_CONNECTIONS && acceptResumeAt == -1;
+        serverKey.interestOps(accept ? SelectionKey.OP_ACCEPT : 0);
     }
 
     private String getClientName(SocketChannel clientChannel) {
@@ -176,8 +1081,8 @@ public class ChatServer {
         }
     }
 
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    private boolean readyToQuit(ByteBuffer msg) {
+        return msg.remaining() == QUIT.length() && startsWith(msg, QUIT);
     }
 
 
@@ -0,0 +1,235 @@
+package com.Handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 客户端的一个逻辑连接，多个连接共用 ChatClient 的同一个 Selector
+ * 发送队列可被任意线程写入，其余状态只由 selector 线程访问
+ */
+public class ClientSession {
+
+    /** 行缓冲区的初始大小 */
+    private static final int LINE_SIZE = 1024;
+    /** 行缓冲区的大小上限，超过后按已收到的部分输出 */
+    private static final int MAX_LINE_SIZE = 64 * 1024;
+
+    /** 连接编号 */
+    private final int id;
+    /** 连接的 channel */
+    private final SocketChannel channel;
+    /** channel 注册得到的 key */
+    private SelectionKey key;
+    /** TLS 连接的加解密状态，明文连接为 null */
+    private TlsSession tls;
+
+    /** 待发送的数据（ByteBuffer 或 FileRegion），由任意线程加入，selector 线程发送 */
+    private final Queue<Object> sendQueue = new ConcurrentLinkedQueue<>();
+    /** 是否已提交给 selector 线程注册 WRITE 事件，避免重复提交 */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /** 尚未收到换行符的半行数据 */
+    private ByteBuffer line = ByteBuffer.allocate(LINE_SIZE);
+
+    /** 正在接收的文件，为 null 表示丢弃文件内容 */
+    private FileChannel download;
+    /** 正在接收的文件路径 */
+    private Path downloadPath;
+    /** 还需接收的文件字节数 */
+    private long downloadRemaining;
+    /** 是否正在接收文件 */
+    private boolean downloading;
+
+    /** 收到的消息数 */
+    private long received;
+
+    public ClientSession(int id, SocketChannel channel) {
+        this.id = id;
+        this.channel = channel;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public TlsSession getTls() {
+        return tls;
+    }
+
+    public void setTls(TlsSession tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * @return 发送数据使用的 channel：TLS 连接写入明文后加密发送，明文连接直接写入 SocketChannel
+     */
+    public GatheringByteChannel getOutput() {
+        return tls != null ? tls : channel;
+    }
+
+    /**
+     * @return 是否还有数据未发送（包括 TLS 连接已加密但未发送的数据）
+     */
+    public boolean hasPendingOutput() {
+        return !sendQueue.isEmpty() || (tls != null && tls.hasPendingOutput());
+    }
+
+    public Queue<Object> getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * 标记该连接需要 selector 线程处理发送
+     * @return true：此前没有标记，调用方需要提交给 selector 线程
+     */
+    public boolean scheduleFlush() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * selector 线程开始处理发送前调用，之后加入队列的数据会重新提交
+     */
+    public void clearFlushScheduled() {
+        flushScheduled.set(false);
+    }
+
+    /**
+     * 保存半行数据，行缓冲区已满时扩容
+     * @return false：超过行缓冲区上限，数据未保存
+     */
+    public boolean appendLine(ByteBuffer buffer) {
+        if (line.remaining() < buffer.remaining()) {
+            int size = line.position() + buffer.remaining();
+            if (size > MAX_LINE_SIZE) {
+                return false;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(size, line.capacity() * 2));
+            line.flip();
+            larger.put(line);
+            line = larger;
+        }
+        line.put(buffer);
+        return true;
+    }
+
+    /**
+     * @return 保存的半行数据（读模式），使用后需调用 clearLine()
+     */
+    public ByteBuffer getLine() {
+        line.flip();
+        return line;
+    }
+
+    public boolean hasLine() {
+        return line.position() > 0;
+    }
+
+    public void clearLine() {
+        line.clear();
+    }
+
+    /**
+     * 开始接收文件
+     * @param path 保存路径，为 null 表示丢弃文件内容
+     * @param size 文件大小
+     * @throws IOException
+     */
+    public void beginDownload(Path path, long size) throws IOException {
+        download = path == null ? null : FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        downloadPath = path;
+        downloadRemaining = size;
+        downloading = true;
+    }
+
+    public boolean isDownloading() {
+        return downloading;
+    }
+
+    /**
+     * 将 buffer 中属于文件的部分写入磁盘，多余的数据留在 buffer 中
+     * @return true：文件已接收完毕
+     * @throws IOException
+     */
+    public boolean writeDownload(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int count = (int) Math.min(buffer.remaining(), downloadRemaining);
+        buffer.limit(buffer.position() + count);
+        if (download != null) {
+            while (buffer.hasRemaining()) {
+                download.write(buffer);
+            }
+        } else {
+            buffer.position(buffer.limit());
+        }
+        buffer.limit(limit);
+        downloadRemaining -= count;
+        if (downloadRemaining > 0) {
+            return false;
+        }
+        if (download != null) {
+            download.close();
+            download = null;
+        }
+        downloading = false;
+        return true;
+    }
+
+    /**
+     * @return 正在或最近一次接收的文件的保存路径，丢弃文件内容时为 null
+     */
+    public Path getDownloadPath() {
+        return downloadPath;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public void incrementReceived() {
+        received++;
+    }
+
+    /**
+     * 关闭连接，释放未发送的文件和未接收完的文件
+     */
+    public void close() {
+        Object data;
+        while ((data = sendQueue.poll()) != null) {
+            if (data instanceof FileRegion) {
+                ((FileRegion) data).release();
+            }
+        }
+        try {
+            // TLS 连接先尽力发送 close_notify 再关闭 channel
+            getOutput().close();
+            if (download != null) {
+                download.close();
+                download = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
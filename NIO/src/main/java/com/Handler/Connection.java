@@ -0,0 +1,315 @@
+package com.Handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 服务端为每个客户端连接保存的状态，作为 SelectionKey 的 attachment
+ */
+public class Connection {
+
+    /** 输入缓冲区的初始大小 */
+    private static final int INPUT_SIZE = 256;
+
+    /** 连接 id，在连接表中唯一标识该连接 */
+    private final long id;
+    /** 客户端 channel */
+    private final SocketChannel channel;
+    /** 该连接的发送限速令牌桶 */
+    private final TokenBucket bucket;
+    /** 转发消息时加在消息前的客户端名称（UTF-8 编码，只编码一次） */
+    private final ByteBuffer namePrefix;
+    /** 该连接复用的解码器 */
+    private final LineDecoder decoder = new LineDecoder();
+    /** TLS 连接的加解密状态，明文连接为 null */
+    private TlsSession tls;
+    /** 尚未处理的输入（写模式）：还没有收到换行符的半行，或超速暂停时尚未处理的数据，有数据时才分配 */
+    private ByteBuffer input;
+    /** input 中是否有因超速暂停而尚未处理的数据；处理完之前不再从 socket 读取 */
+    private boolean backlog;
+    /** 登录的用户名，未登录时为 null */
+    private String user;
+    /** 读事件被暂停时，恢复读取的时刻（System.nanoTime()）；未暂停时为 -1 */
+    private long resumeAt = -1;
+
+    /**
+     * 待发送给该客户端的数据（ByteBuffer、FileRegion 或广播的送达标记），按入队顺序发送
+     * 并行广播时会被多个线程访问，读写队列和 channel 都需持有该 Connection 的锁
+     */
+    private final Queue<Object> outbound = new ArrayDeque<>();
+    /** 取回离线消息期间发给该客户端的数据，取回结束后移入 outbound；为 null 表示没有在取回，同样需持有该 Connection 的锁 */
+    private Queue<Object> held;
+    /** 该客户端最近一次并行广播的完成状态，之后的消息排在其后广播，保证同一发送者的消息顺序 */
+    private CompletableFuture<Void> fanOut;
+
+    /** 正在上传的文件名 */
+    private String uploadName;
+    /** 上传过程中写入的临时文件 */
+    private Path uploadPath;
+    /** 临时文件的 channel，为 null 表示丢弃上传的内容 */
+    private FileChannel upload;
+    /** 还需接收的上传字节数 */
+    private long uploadRemaining;
+
+    public Connection(long id, SocketChannel channel, TokenBucket bucket, ByteBuffer namePrefix) {
+        this.id = id;
+        this.channel = channel;
+        this.bucket = bucket;
+        this.namePrefix = namePrefix;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public TlsSession getTls() {
+        return tls;
+    }
+
+    public void setTls(TlsSession tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * @return 发送数据使用的 channel：TLS 连接写入明文后加密发送，明文连接直接写入 SocketChannel
+     */
+    public GatheringByteChannel getOutput() {
+        return tls != null ? tls : channel;
+    }
+
+    /**
+     * @return TLS 连接是否还有已加密但未发送的数据
+     */
+    public boolean hasPendingOutput() {
+        return tls != null && tls.hasPendingOutput();
+    }
+
+    public TokenBucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return 客户端名称，使用时需 duplicate()
+     */
+    public ByteBuffer getNamePrefix() {
+        return namePrefix;
+    }
+
+    public LineDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * 保存尚未处理的输入，缓冲区已满时扩容
+     */
+    public void appendInput(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return;
+        }
+        if (input == null) {
+            input = ByteBuffer.allocate(Math.max(INPUT_SIZE, buffer.remaining()));
+        } else if (input.remaining() < buffer.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(input.position() + buffer.remaining(), input.capacity() * 2));
+            input.flip();
+            larger.put(input);
+            input = larger;
+        }
+        input.put(buffer);
+    }
+
+    /**
+     * @return 保存的输入（读模式），处理后需调用 compactInput()
+     */
+    public ByteBuffer getInput() {
+        input.flip();
+        return input;
+    }
+
+    /**
+     * 丢弃已处理的输入，全部处理完时释放缓冲区
+     */
+    public void compactInput() {
+        if (input.hasRemaining()) {
+            input.compact();
+        } else {
+            input = null;
+        }
+    }
+
+    public boolean hasInput() {
+        return input != null;
+    }
+
+    public int getInputSize() {
+        return input == null ? 0 : input.position();
+    }
+
+    public boolean hasBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(boolean backlog) {
+        this.backlog = backlog;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public CompletableFuture<Void> getFanOut() {
+        return fanOut;
+    }
+
+    public void setFanOut(CompletableFuture<Void> fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public long getResumeAt() {
+        return resumeAt;
+    }
+
+    public void setResumeAt(long resumeAt) {
+        this.resumeAt = resumeAt;
+    }
+
+    public Queue<Object> getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * 开始取回离线消息，此后发给该客户端的数据暂存到 held
+     */
+    public void hold() {
+        held = new ArrayDeque<>();
+    }
+
+    public boolean isHolding() {
+        return held != null;
+    }
+
+    public Queue<Object> getHeld() {
+        return held;
+    }
+
+    /**
+     * 结束取回离线消息
+     * @return 取回期间暂存的数据
+     */
+    public Queue<Object> unhold() {
+        Queue<Object> data = held;
+        held = null;
+        return data;
+    }
+
+    /**
+     * 开始接收上传的文件
+     * @param name 文件名
+     * @param path 临时文件路径，为 null 表示丢弃上传的内容
+     * @param size 文件大小
+     * @throws IOException
+     */
+    public void beginUpload(String name, Path path, long size) throws IOException {
+        this.uploadName = name;
+        this.uploadPath = path;
+        this.upload = path == null ? null : FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.uploadRemaining = size;
+    }
+
+    public boolean isUploading() {
+        return uploadName != null;
+    }
+
+    public String getUploadName() {
+        return uploadName;
+    }
+
+    /**
+     * 将 buffer 中属于上传文件的部分写入磁盘，多余的数据留在 buffer 中
+     * @return true：文件已接收完毕
+     * @throws IOException
+     */
+    public boolean writeUpload(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int count = (int) Math.min(buffer.remaining(), uploadRemaining);
+        buffer.limit(buffer.position() + count);
+        if (upload != null) {
+            while (buffer.hasRemaining()) {
+                upload.write(buffer);
+            }
+        } else {
+            buffer.position(buffer.limit());
+        }
+        buffer.limit(limit);
+        uploadRemaining -= count;
+        return uploadRemaining == 0;
+    }
+
+    /**
+     * 结束上传
+     * @return 写入完成的临时文件，丢弃上传内容时为 null
+     * @throws IOException
+     */
+    public Path endUpload() throws IOException {
+        Path path = uploadPath;
+        if (upload != null) {
+            upload.close();
+        }
+        upload = null;
+        uploadPath = null;
+        uploadName = null;
+        return path;
+    }
+
+    /**
+     * 连接断开时释放排队中的文件和未完成的上传
+     */
+    public void release() {
+        synchronized (this) {
+            release(outbound);
+            if (held != null) {
+                release(held);
+                held = null;
+            }
+        }
+        if (isUploading()) {
+            try {
+                Path path = endUpload();
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void release(Queue<Object> queue) {
+        for (Object data : queue) {
+            if (data instanceof FileRegion) {
+                ((FileRegion) data).release();
+            } else if (data instanceof FanOutStats.Broadcast) {
+                // 不再等待该收件人，广播的耗时统计照常结束
+                ((FanOutStats.Broadcast) data).delivered();
+            }
+        }
+        queue.clear();
+    }
+}
@@ -0,0 +1,212 @@
+package com.Handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以 long 型连接 id 为 key 的连接表
+ * 开放寻址（线性探测）+ key/value 分别存放在两个数组中，查找和遍历不装箱、不分配对象
+ * 写操作（put/remove）互斥，读操作（get/forEach）无锁，可与写操作并发
+ * @param <V> 连接对象的类型
+ */
+public class ConnectionTable<V> {
+
+    /** 默认容量，必须是 2 的幂 */
+    private static final int DEFAULT_CAPACITY = 64;
+    /** 已占用的槽（包括已删除的槽）超过容量的一半时扩容 */
+    private static final int MAX_LOAD_PERCENT = 50;
+    /** 空槽的 key */
+    private static final long EMPTY = 0;
+
+    /**
+     * 遍历连接表的回调
+     */
+    public interface Visitor<V> {
+        void visit(long id, V value);
+    }
+
+    /**
+     * 存放数据的数组，扩容时整体替换，读者拿到的总是同一组数组
+     * keys 中 EMPTY 表示空槽；values 中 null 表示该 key 已被删除（墓碑，探测时不能中断）
+     */
+    private static final class Slots {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+        final int shift;
+
+        Slots(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        /** 斐波那契散列，连续的 id 被分散到不同的槽 */
+        int indexOf(long id) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+    }
+
+    private volatile Slots slots = new Slots(DEFAULT_CAPACITY);
+    /** 存活的连接数 */
+    private volatile int size;
+    /** 已占用的槽数（包括墓碑），只在写锁内访问 */
+    private int used;
+
+    /**
+     * 查找连接
+     * @param id 连接 id
+     * @return 连接对象，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long id) {
+        Slots s = slots;
+        for (int i = s.indexOf(id); ; i = (i + 1) & s.mask) {
+            long key = s.keys.get(i);
+            if (key == id) {
+                return (V) s.values.get(i);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 添加或替换连接
+     * @param id 连接 id，不能为 0
+     * @param value 连接对象，不能为 null
+     */
+    public synchronized void put(long id, V value) {
+        if (id == EMPTY || value == null) {
+            throw new IllegalArgumentException("id 不能为 0，value 不能为 null");
+        }
+        Slots s = slots;
+        int i = s.indexOf(id);
+        long key;
+        while ((key = s.keys.get(i)) != EMPTY) {
+            if (key == id) {
+                if (s.values.get(i) == null) {
+                    size++;
+                }
+                s.values.set(i, value);
+                return;
+            }
+            i = (i + 1) & s.mask;
+        }
+        if ((used + 1) * 100L > (long) s.keys.length() * MAX_LOAD_PERCENT) {
+            rehash();
+            put(id, value);
+            return;
+        }
+        // 先写 value 再写 key，读者看到 key 时 value 一定已可见
+        s.values.set(i, value);
+        s.keys.set(i, id);
+        used++;
+        size++;
+    }
+
+    /**
+     * 删除连接，槽位保留为墓碑，直到下次扩容时清理
+     * @param id 连接 id
+     * @return 被删除的连接对象，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long id) {
+        Slots s = slots;
+        for (int i = s.indexOf(id); ; i = (i + 1) & s.mask) {
+            long key = s.keys.get(i);
+            if (key == id) {
+                V value = (V) s.values.getAndSet(i, null);
+                if (value != null) {
+                    size--;
+                }
+                return value;
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 按存活连接数重建数组，清理墓碑
+     */
+    private void rehash() {
+        Slots old = slots;
+        int capacity = DEFAULT_CAPACITY;
+        while ((size + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT / 2) {
+            capacity <<= 1;
+        }
+        Slots s = new Slots(capacity);
+        for (int j = 0; j < old.keys.length(); j++) {
+            Object value = old.values.get(j);
+            if (value != null) {
+                long id = old.keys.get(j);
+                int i = s.indexOf(id);
+                while (s.keys.get(i) != EMPTY) {
+                    i = (i + 1) & s.mask;
+                }
+                s.values.set(i, value);
+                s.keys.set(i, id);
+            }
+        }
+        used = size;
+        slots = s;
+    }
+
+    /**
+     * 遍历所有连接，顺序扫描数组
+     * 遍历期间其他线程删除的连接可能被跳过，添加的连接可能遍历不到
+     */
+    public void forEach(Visitor<? super V> visitor) {
+        Slots s = slots;
+        forEach(s, 0, s.keys.length(), visitor);
+    }
+
+    /**
+     * 取得连接表当前的数组，用于把一次遍历按槽位区间拆分给多个线程
+     * 之后的扩容不影响已取得的快照，每个连接在快照中最多出现一次
+     */
+    public Snapshot<V> snapshot() {
+        return new Snapshot<>(slots);
+    }
+
+    /**
+     * 连接表某一时刻的数组
+     */
+    public static final class Snapshot<V> {
+        private final Slots slots;
+
+        private Snapshot(Slots slots) {
+            this.slots = slots;
+        }
+
+        /** 槽位总数 */
+        public int capacity() {
+            return slots.keys.length();
+        }
+
+        /**
+         * 遍历槽位 [from, to) 中的连接
+         */
+        public void forEach(int from, int to, Visitor<? super V> visitor) {
+            ConnectionTable.forEach(slots, from, to, visitor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void forEach(Slots s, int from, int to, Visitor<? super V> visitor) {
+        for (int i = from; i < to; i++) {
+            Object value = s.values.get(i);
+            if (value != null) {
+                visitor.visit(s.keys.get(i), (V) value);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
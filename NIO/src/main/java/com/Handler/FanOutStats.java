@@ -0,0 +1,128 @@
+package com.Handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 广播耗时统计：从开始转发到最后一个收件人写入完成的时间，串行和并行分开统计，定期打印到控制台
+ * 耗时按 2 的幂分桶，p99 为所在桶的上界
+ */
+public class FanOutStats {
+
+    /** 打印间隔 */
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * 一种广播方式的统计
+     */
+    private static final class Histogram {
+        /** 第 i 个桶：耗时在 [2^i, 2^(i+1)) 纳秒之间的消息数 */
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+        final LongAdder count = new LongAdder();
+        final LongAdder recipients = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(int recipientCount, long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+            count.increment();
+            recipients.add(recipientCount);
+            totalNanos.add(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            }
+        }
+
+        /**
+         * @return 耗时不超过该值的消息占比达到 percent 的桶上界（纳秒）
+         */
+        long percentile(long total, int percent) {
+            long target = (total * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return 2L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        String summary() {
+            long n = count.sum();
+            if (n == 0) {
+                return "0 条";
+            }
+            return n + " 条，平均收件人 " + recipients.sum() / n
+                    + "，平均 " + TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / n) + "us"
+                    + "，p99 <" + TimeUnit.NANOSECONDS.toMicros(percentile(n, 99)) + "us"
+                    + "，最大 " + TimeUnit.NANOSECONDS.toMicros(maxNanos.get()) + "us";
+        }
+    }
+
+    private final Histogram serial = new Histogram();
+    private final Histogram parallel = new Histogram();
+    /** 下一次打印的时刻（System.nanoTime()） */
+    private final AtomicLong nextReport = new AtomicLong(System.nanoTime() + REPORT_INTERVAL);
+
+    /**
+     * 开始一次广播，收件人的发送队列中在消息之后加入返回的标记，转发结束后调用一次 delivered()
+     * @param parallel 是否并行广播
+     */
+    public Broadcast begin(boolean parallel) {
+        return new Broadcast(parallel);
+    }
+
+    /**
+     * 记录一次广播，可被多个线程同时调用
+     * @param parallel 是否并行广播
+     * @param recipients 收件人数
+     * @param nanos 耗时
+     */
+    public void record(boolean parallel, int recipients, long nanos) {
+        (parallel ? this.parallel : serial).record(recipients, nanos);
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + REPORT_INTERVAL)) {
+            System.out.println("广播耗时统计：串行 " + serial.summary() + "；并行 " + this.parallel.summary());
+        }
+    }
+
+    /**
+     * 一次广播的送达进度，作为标记排在每个收件人的消息之后
+     * 发送队列处理到该标记（消息已写入 socket）或收件人断开时调用 delivered()，最后一个收件人完成时记录耗时
+     */
+    public final class Broadcast {
+
+        private final boolean parallel;
+        private final long start = System.nanoTime();
+        /** 尚未完成的收件人数，加上转发本身 */
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        /** 收件人数 */
+        private final AtomicInteger recipients = new AtomicInteger();
+
+        private Broadcast(boolean parallel) {
+            this.parallel = parallel;
+        }
+
+        /**
+         * 增加一个收件人，在把标记加入其发送队列之前调用
+         */
+        public void add() {
+            recipients.incrementAndGet();
+            remaining.incrementAndGet();
+        }
+
+        /**
+         * 一个收件人已完成，或转发已结束
+         */
+        public void delivered() {
+            if (remaining.decrementAndGet() == 0) {
+                record(parallel, recipients.get(), System.nanoTime() - start);
+            }
+        }
+    }
+}
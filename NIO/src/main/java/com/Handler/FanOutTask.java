@@ -0,0 +1,52 @@
+package com.Handler;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行广播：把连接表快照按槽位区间对半拆分，由 ForkJoinPool 的多个线程分别遍历各自的区间
+ * @param <V> 连接对象的类型
+ */
+public class FanOutTask<V> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /** 每个子任务最少遍历的槽位数，区间过小时拆分的开销超过并行的收益 */
+    private static final int MIN_LEAF_SLOTS = 256;
+
+    private final ConnectionTable.Snapshot<V> snapshot;
+    private final int from;
+    private final int to;
+    /** 不再拆分的区间大小 */
+    private final int leafSlots;
+    private final ConnectionTable.Visitor<? super V> visitor;
+
+    /**
+     * @param snapshot 连接表快照
+     * @param visitor 对每个连接执行的操作，会被多个线程同时调用
+     * @param parallelism 并行线程数，每个线程大约分到 4 个子任务，便于工作窃取
+     */
+    public FanOutTask(ConnectionTable.Snapshot<V> snapshot, ConnectionTable.Visitor<? super V> visitor, int parallelism) {
+        this(snapshot, 0, snapshot.capacity(),
+                Math.max(MIN_LEAF_SLOTS, snapshot.capacity() / (parallelism * 4)), visitor);
+    }
+
+    private FanOutTask(ConnectionTable.Snapshot<V> snapshot, int from, int to, int leafSlots,
+                       ConnectionTable.Visitor<? super V> visitor) {
+        this.snapshot = snapshot;
+        this.from = from;
+        this.to = to;
+        this.leafSlots = leafSlots;
+        this.visitor = visitor;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= leafSlots) {
+            snapshot.forEach(from, to, visitor);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new FanOutTask<>(snapshot, from, mid, leafSlots, visitor),
+                new FanOutTask<>(snapshot, mid, to, leafSlots, visitor));
+    }
+}
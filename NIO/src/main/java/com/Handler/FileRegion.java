@@ -0,0 +1,73 @@
+package com.Handler;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 待发送的一段文件内容，通过 FileChannel.transferTo 直接写入 SocketChannel（sendfile，不经过用户态缓冲区）
+ * 同一个文件发送给多个客户端时共用一个 FileChannel，最后一个 FileRegion 释放时关闭
+ */
+public class FileRegion {
+
+    /** 文件 channel（transferTo 不改变 channel 的 position，可被多个 FileRegion 共用） */
+    private final FileChannel file;
+    /** 共用该文件的 FileRegion 数量 */
+    private final AtomicInteger refs;
+    /** 下一次发送的起始位置 */
+    private long position;
+    /** 发送的结束位置 */
+    private final long end;
+
+    /**
+     * @param file 文件 channel，所有 FileRegion 都释放后被关闭
+     * @param count 要发送的字节数
+     * @param copies 共用该文件的 FileRegion 数量
+     * @return 发送同一文件内容的 copies 个 FileRegion
+     */
+    public static FileRegion[] share(FileChannel file, long count, int copies) {
+        AtomicInteger refs = new AtomicInteger(copies);
+        FileRegion[] regions = new FileRegion[copies];
+        for (int i = 0; i < copies; i++) {
+            regions[i] = new FileRegion(file, refs, count);
+        }
+        return regions;
+    }
+
+    private FileRegion(FileChannel file, AtomicInteger refs, long count) {
+        this.file = file;
+        this.refs = refs;
+        this.end = count;
+    }
+
+    /**
+     * 将文件内容发送到目标 channel
+     * @param target 目标 channel
+     * @param maxBytes 本次最多发送的字节数
+     * @return 实际发送的字节数，目标 channel 写满时可能为 0
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target, long maxBytes) throws IOException {
+        long sent = file.transferTo(position, Math.min(maxBytes, end - position), target);
+        position += sent;
+        return sent;
+    }
+
+    public boolean isDone() {
+        return position >= end;
+    }
+
+    /**
+     * 发送完成或连接断开时调用，最后一个使用者负责关闭文件
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.Handler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 每个连接一个的 UTF-8 行解码器，每次解码完整的一行
+ * 服务器只处理完整的行，行内不会有被拆开的多字节字符；聊天消息按字节转发，
+ * 只有服务器需要查看文本时才解码，解码器和解码结果在同一连接的多行之间复用
+ */
+public class LineDecoder {
+
+    /** 解码结果的初始大小 */
+    private static final int CHARS_SIZE = 256;
+
+    /** 复用的解码器 */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** 复用的解码结果 */
+    private CharBuffer chars = CharBuffer.allocate(CHARS_SIZE);
+
+    /**
+     * 解码 bytes 中的剩余字节（一整行），非法或不完整的字节替换为替换字符
+     * @return 解码结果，在下一次调用前有效
+     */
+    public CharBuffer decode(ByteBuffer bytes) {
+        decoder.reset();
+        chars.clear();
+        while (decoder.decode(bytes, chars, true) == CoderResult.OVERFLOW) {
+            CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+            chars.flip();
+            larger.put(chars);
+            chars = larger;
+        }
+        chars.flip();
+        return chars;
+    }
+}
@@ -0,0 +1,330 @@
+package com.Handler;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * 一个 TLS 连接：用 SSLEngine 在非阻塞的 SocketChannel 之上加解密
+ * 作为 channel 写入的是明文，每个连接用自己的密钥把明文直接加密到 netOut，写不完的密文留到下一次 WRITE 事件
+ * 握手由读写事件推进，耗时的委托任务（密钥交换、证书校验）在 taskExecutor 中执行，完成后回调 onTaskDone
+ * netIn/netOut 只在有未处理的密文时从 BufferPool 借用；所有方法互斥，事件循环和并行广播的线程可以同时使用
+ */
+public class TlsSession implements GatheringByteChannel {
+
+    /** 握手消息和 close_notify 不携带应用数据 */
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    /** netIn/netOut 的来源，Buffer 大小不小于 SSLSession 的 packetBufferSize */
+    private final BufferPool buffers;
+    /** 执行握手委托任务的线程池 */
+    private final Executor taskExecutor;
+    /** 委托任务完成后调用（在 taskExecutor 的线程中），调用方需回到自己的 IO 线程继续握手 */
+    private final Runnable onTaskDone;
+
+    /** 收到但尚未解密的密文（写模式），为 null 表示没有 */
+    private ByteBuffer netIn;
+    /** 已加密但尚未发送的密文（读模式），为 null 表示没有 */
+    private ByteBuffer netOut;
+    /** 写入单个 Buffer 时复用的数组 */
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    /** 是否有委托任务正在执行 */
+    private boolean taskRunning;
+    /** 初次握手是否已完成，完成前不发送应用数据 */
+    private volatile boolean handshakeComplete;
+    private boolean closed;
+
+    /**
+     * @param engine 已设置好客户端/服务端模式的 SSLEngine
+     */
+    public TlsSession(SSLEngine engine, SocketChannel channel, BufferPool buffers,
+                      Executor taskExecutor, Runnable onTaskDone) throws SSLException {
+        this.engine = engine;
+        this.channel = channel;
+        this.buffers = buffers;
+        this.taskExecutor = taskExecutor;
+        this.onTaskDone = onTaskDone;
+        engine.beginHandshake();
+    }
+
+    /**
+     * 从 channel 读取密文并解密到 dst，握手期间同时推进握手
+     * 读取的密文不超过 dst 的剩余空间（明文不会比密文长），因此已读取的完整记录总能一次解密完
+     * @param dst 写模式的 Buffer
+     * @return 解密得到的明文字节数，-1 表示连接已关闭
+     * @throws IOException
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        if (netIn == null) {
+            netIn = buffers.acquire();
+        }
+        int count = 0;
+        int limit = Math.min(netIn.capacity(), netIn.position() + dst.remaining());
+        if (limit > netIn.position()) {
+            netIn.limit(limit);
+            count = channel.read(netIn);
+            netIn.limit(netIn.capacity());
+        }
+        netIn.flip();
+        int produced = 0;
+        try {
+            while (doHandshake() && netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    // 对方发送了 close_notify
+                    count = -1;
+                    break;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    // BUFFER_UNDERFLOW：记录不完整，等待后续数据
+                    // BUFFER_OVERFLOW：dst 已满，密文留到下一次读取时解密
+                    break;
+                }
+            }
+        } finally {
+            compactIn();
+        }
+        return produced == 0 && count < 0 ? -1 : produced;
+    }
+
+    /**
+     * 推进握手：发送待发送的握手消息、处理已收到的握手消息
+     * @return true：握手已完成
+     * @throws IOException
+     */
+    public synchronized boolean handshake() throws IOException {
+        if (netIn != null) {
+            netIn.flip();
+        }
+        try {
+            return doHandshake();
+        } finally {
+            if (netIn != null) {
+                compactIn();
+            }
+        }
+    }
+
+    /**
+     * netIn 处于读模式（或为 null）时调用
+     */
+    private boolean doHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    if (!taskRunning) {
+                        taskRunning = true;
+                        taskExecutor.execute(this::runDelegatedTasks);
+                    }
+                    return false;
+                case NEED_WRAP:
+                    if (!flushNet()) {
+                        return false;
+                    }
+                    if (wrap(EMPTY, 0, 1).getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("握手失败，连接已关闭");
+                    }
+                    if (!flushNet()) {
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    if (handshakeComplete) {
+                        // 握手之后的消息与应用数据一起在 read() 中解密
+                        return true;
+                    }
+                    if (netIn == null || !netIn.hasRemaining()) {
+                        return false;
+                    }
+                    SSLEngineResult result = engine.unwrap(netIn, EMPTY[0]);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        return false;
+                    }
+                    if (result.getStatus() != SSLEngineResult.Status.OK) {
+                        throw new SSLException("握手失败：" + result.getStatus());
+                    }
+                    break;
+                default:
+                    handshakeComplete = true;
+                    return true;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        synchronized (this) {
+            taskRunning = false;
+        }
+        onTaskDone.run();
+    }
+
+    /**
+     * 加密并发送明文，握手完成前不发送
+     * @return 已加密的明文字节数，对应的密文可能还有一部分在 netOut 中等待发送
+     * @throws IOException
+     */
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!handshakeComplete) {
+            return 0;
+        }
+        long consumed = 0;
+        while (doHandshake() && flushNet() && hasRemaining(srcs, offset, length)) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+        }
+        flushNet();
+        return consumed;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    /**
+     * 把明文加密成一条记录放入 netOut，调用前 netOut 必须已发送完
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        ByteBuffer out = buffers.acquire();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, offset, length, out);
+        } catch (SSLException e) {
+            buffers.release(out);
+            throw e;
+        }
+        out.flip();
+        if (out.hasRemaining()) {
+            netOut = out;
+        } else {
+            buffers.release(out);
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("密文缓冲区不足：" + buffers.getBufferSize());
+        }
+        return result;
+    }
+
+    /**
+     * 发送 netOut 中的密文
+     * @return true：已全部发送
+     */
+    private boolean flushNet() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            return false;
+        }
+        buffers.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    private void compactIn() {
+        netIn.compact();
+        if (netIn.position() == 0) {
+            buffers.release(netIn);
+            netIn = null;
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /**
+     * @return 是否还有密文等待发送（需要监听 WRITE 事件）
+     */
+    public synchronized boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * @return 是否有已收到但尚未解密的密文
+     */
+    public synchronized boolean hasBufferedInput() {
+        return netIn != null;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * 尽力发送 close_notify（不等待对方回应），归还缓冲区并关闭 channel
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (flushNet()) {
+                wrap(EMPTY, 0, 1);
+                flushNet();
+            }
+        } catch (IOException e) {
+            // 连接可能已经断开，close_notify 发送失败不影响关闭
+        } finally {
+            if (netIn != null) {
+                buffers.release(netIn);
+                netIn = null;
+            }
+            if (netOut != null) {
+                buffers.release(netOut);
+                netOut = null;
+            }
+            channel.close();
+        }
+    }
+}
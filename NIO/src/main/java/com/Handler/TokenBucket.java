@@ -0,0 +1,72 @@
+package com.Handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶（GCRA 实现）
+ * 只保存一个“理论到达时间”，获取令牌时用 CAS 推进，不加锁也不分配对象
+ */
+public class TokenBucket {
+
+    /** 生成一个令牌所需的时间（纳秒） */
+    private final long interval;
+    /** 允许的突发容量换算成的时间容差（纳秒） */
+    private final long tolerance;
+    /** 理论到达时间：下一个令牌“按速率”可用的时刻 */
+    private final AtomicLong tat;
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param capacity 桶容量，即允许连续突发的次数
+     */
+    public TokenBucket(long permitsPerSecond, long capacity) {
+        if (permitsPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond 和 capacity 必须大于 0");
+        }
+        this.interval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.tolerance = interval * (capacity - 1);
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @param now 当前时间 System.nanoTime()
+     * @return true：获取成功
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long t = tat.get();
+            // 桶已满时理论到达时间落后于当前时间，从当前时间开始计算
+            long base = t - now < 0 ? now : t;
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (tat.compareAndSet(t, base + interval)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * 归还一个刚获取的令牌
+     * 同时受多个令牌桶限制时，后面的桶获取失败，需把前面已获取的令牌还回去
+     */
+    public void release() {
+        tat.addAndGet(-interval);
+    }
+
+    /**
+     * 距离下一个令牌可用还需等待的时间
+     * @param now 当前时间 System.nanoTime()
+     * @return 等待时间（纳秒），0 表示当前即可获取
+     */
+    public long nanosUntilAvailable(long now) {
+        long wait = tat.get() - tolerance - now;
+        return wait > 0 ? wait : 0;
+    }
+}
@@ -18,6 +18,9 @@ public class UserInputHandler implements Runnable{
         while (true) {
             try {
                 String input = consoleReader.readLine();
+                if (input == null) {
+                    break;
+                }
                 client.send(input);
 
                 if (client.readyToQuit(input)) {
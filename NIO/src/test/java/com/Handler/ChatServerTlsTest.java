@@ -0,0 +1,113 @@
+package com.Handler;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过回环地址测试 TLS 服务器：握手、广播、上传下载，以及拒绝明文客户端
+ * 测试开始时用 keytool 生成自签名证书，服务器和客户端运行在同一进程中
+ */
+public class ChatServerTlsTest {
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static ChatServer server;
+    private static Thread serverThread;
+    private static int port;
+    private static SSLContext clientContext;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Path keyStore = TestSupport.generateKeyStore(folder.getRoot().toPath());
+        TestSupport.useServerKeyStore(keyStore);
+        clientContext = TestSupport.clientContext(keyStore);
+        port = TestSupport.freePort();
+        server = new ChatServer(port);
+        serverThread = TestSupport.start(server, port);
+    }
+
+    @AfterClass
+    public static void stopServer() throws InterruptedException {
+        server.stop();
+        serverThread.join(5000);
+    }
+
+    private TestSupport.Client connect() throws IOException {
+        return new TestSupport.Client(clientContext, port);
+    }
+
+    @Test(timeout = 10000)
+    public void handshake() throws Exception {
+        try (TestSupport.Client client = connect()) {
+            SSLSession session = client.getSession();
+            assertTrue(session.getProtocol(), session.getProtocol().startsWith("TLSv1."));
+            X509Certificate certificate = (X509Certificate) session.getPeerCertificates()[0];
+            assertEquals("CN=localhost", certificate.getSubjectX500Principal().getName());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void broadcast() throws Exception {
+        try (TestSupport.Client a = connect(); TestSupport.Client b = connect(); TestSupport.Client c = connect()) {
+            a.sendLine("你好 hello");
+            assertTrue(b.readLine().endsWith(":你好 hello"));
+            assertTrue(c.readLine().endsWith(":你好 hello"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void uploadAndDownload() throws Exception {
+        // 大于一条 TLS 记录和一次 FILE_CHUNK，覆盖分段加密和 WRITE 事件续传
+        byte[] data = new byte[300 * 1024];
+        new Random(1).nextBytes(data);
+        String header = "\\file tls-test.bin " + data.length;
+        try (TestSupport.Client a = connect(); TestSupport.Client b = connect()) {
+            a.send(("\\upload tls-test.bin " + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+            a.send(data);
+            assertEquals(header, b.readLine());
+            assertArrayEquals(data, b.readBytes(data.length));
+
+            b.sendLine("\\download tls-test.bin");
+            assertEquals(header, b.readLine());
+            assertArrayEquals(data, b.readBytes(data.length));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void plaintextClientIsDisconnected() throws Exception {
+        try (TestSupport.Client a = connect(); TestSupport.Client b = connect();
+             Socket plain = new Socket("localhost", port)) {
+            plain.getOutputStream().write("hello\n".getBytes(StandardCharsets.UTF_8));
+            // 服务器可能先回复 TLS 警报，之后关闭连接
+            InputStream in = plain.getInputStream();
+            try {
+                while (in.read() >= 0) {
+                }
+            } catch (SocketException e) {
+                // 连接被重置，同样是已断开
+            }
+            // 明文消息没有被转发，其他客户端收到的下一条是 after
+            a.sendLine("after");
+            assertTrue(b.readLine().endsWith(":after"));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.Handler;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 广播延迟的基准测试：在本进程中启动服务器，连接若干接收者，几个发送者按限速发送带时间戳的消息，
+ * 统计每条消息从发送到各接收者收到的延迟
+ *
+ * 用法（先 mvn test-compile）：
+ * java -cp target/classes:target/test-classes [-Dtls=true] [-Dfanout.threshold=200] com.Handler.FanOutBenchmark [接收者数] [秒数]
+ * 服务器每 10 秒打印的广播统计（FanOutStats）可与此处的端到端延迟对照
+ */
+public class FanOutBenchmark {
+
+    /** 发送者数 */
+    private static final int SENDERS = 5;
+    /** 每个发送者的发送间隔，低于服务器对单个客户端的限速 */
+    private static final long SEND_INTERVAL = 100;
+    /** 发送结束后等待消息送达的时间 */
+    private static final long DRAIN_TIME = 2000;
+    /** 消息内容的前缀，之后是发送时刻（System.nanoTime()） */
+    private static final String PREFIX = "bench ";
+
+    public static void main(String[] args) throws Exception {
+        int receiverCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        boolean tls = Boolean.getBoolean("tls");
+        if (System.getProperty("log.messages") == null) {
+            // 打印每条消息会掩盖广播本身的耗时
+            System.setProperty("log.messages", "false");
+        }
+
+        SSLContext context = null;
+        if (tls) {
+            Path keyStore = TestSupport.generateKeyStore(Files.createTempDirectory("bench"));
+            TestSupport.useServerKeyStore(keyStore);
+            context = TestSupport.clientContext(keyStore);
+        }
+        int port = TestSupport.freePort();
+        ChatServer server = new ChatServer(port);
+        TestSupport.start(server, port);
+
+        List<Receiver> receivers = new ArrayList<>(receiverCount);
+        for (int i = 0; i < receiverCount; i++) {
+            Receiver receiver = new Receiver(connect(context, port));
+            receivers.add(receiver);
+            receiver.start();
+        }
+        List<Socket> senders = new ArrayList<>(SENDERS);
+        for (int i = 0; i < SENDERS; i++) {
+            senders.add(connect(context, port));
+        }
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        int sent = 0;
+        while (System.nanoTime() - end < 0) {
+            for (Socket sender : senders) {
+                OutputStream out = sender.getOutputStream();
+                out.write((PREFIX + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sent++;
+            }
+            Thread.sleep(SEND_INTERVAL);
+        }
+        Thread.sleep(DRAIN_TIME);
+        server.stop();
+
+        int delivered = 0;
+        for (Receiver receiver : receivers) {
+            delivered += receiver.count;
+        }
+        long[] latencies = new long[delivered];
+        int n = 0;
+        for (Receiver receiver : receivers) {
+            System.arraycopy(receiver.latencies, 0, latencies, n, receiver.count);
+            n += receiver.count;
+        }
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        System.out.println((tls ? "TLS" : "明文") + "，接收者 " + receiverCount + "，发送 " + sent + " 条，应送达 "
+                + (long) sent * receiverCount + " 次，实际送达 " + delivered + " 次");
+        if (delivered > 0) {
+            System.out.println("延迟：平均 " + total / delivered / 1000 + "us，p50 " + percentile(latencies, 50)
+                    + "us，p99 " + percentile(latencies, 99) + "us，最大 " + latencies[delivered - 1] / 1000 + "us");
+        }
+        System.exit(0);
+    }
+
+    private static Socket connect(SSLContext context, int port) throws IOException {
+        return context == null ? new Socket("localhost", port)
+                : context.getSocketFactory().createSocket("localhost", port);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[(int) ((sorted.length - 1) * (long) p / 100)] / 1000;
+    }
+
+    /**
+     * 一个接收者：在自己的线程中按行读取，记录每条基准消息的延迟
+     */
+    private static final class Receiver extends Thread {
+
+        private final Socket socket;
+        /** 延迟（纳秒），只由该线程写入，结束后由主线程读取 */
+        private volatile long[] latencies = new long[1024];
+        private volatile int count;
+
+        Receiver(Socket socket) {
+            this.socket = socket;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int start = line.indexOf(PREFIX);
+                    if (start < 0) {
+                        continue;
+                    }
+                    long latency = System.nanoTime() - Long.parseLong(line.substring(start + PREFIX.length()));
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count] = latency;
+                    count++;
+                }
+            } catch (IOException e) {
+                // 服务器停止
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.Handler;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * 测试和基准测试共用的工具：生成自签名证书，创建信任该证书的客户端，在后台线程中运行服务器
+ */
+final class TestSupport {
+
+    /** 密钥库的密码 */
+    static final String PASSWORD = "changeit";
+    /** 等待服务器开始监听的最长时间 */
+    private static final long START_TIMEOUT = 10_000;
+
+    private TestSupport() {
+    }
+
+    /**
+     * 用 JDK 自带的 keytool 生成 CN=localhost 的自签名 EC 证书
+     * @param dir 存放密钥库的目录
+     * @return PKCS12 密钥库
+     */
+    static Path generateKeyStore(Path dir) throws IOException, InterruptedException {
+        Path keyStore = dir.resolve("server.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat",
+                "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .inheritIO()
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool 退出码：" + process.exitValue());
+        }
+        return keyStore;
+    }
+
+    /**
+     * 服务器通过系统属性启用 TLS，并从 SSLContext.getDefault() 取得证书，需在创建 ChatServer 之前调用
+     */
+    static void useServerKeyStore(Path keyStore) {
+        System.setProperty("tls", "true");
+        System.setProperty("javax.net.ssl.keyStore", keyStore.toString());
+        System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+        System.setProperty("javax.net.ssl.keyStoreType", "PKCS12");
+    }
+
+    /**
+     * @return 只信任 keyStore 中证书的客户端 SSLContext
+     */
+    static SSLContext clientContext(Path keyStore) throws GeneralSecurityException, IOException {
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            trusted.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, factory.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * @return 当前空闲的本地端口
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 在后台线程中运行服务器，返回时服务器已开始监听
+     */
+    static Thread start(ChatServer server, int port) throws IOException, InterruptedException {
+        Thread thread = new Thread(server::start, "ChatServer");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return thread;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * 阻塞式的 TLS 测试客户端，按行收发消息，文件内容按字节读取
+     */
+    static final class Client implements Closeable {
+
+        private final SSLSocket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Client(SSLContext context, int port) throws IOException {
+            socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+            socket.startHandshake();
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        SSLSession getSession() {
+            return socket.getSession();
+        }
+
+        void send(byte[] data) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        void sendLine(String line) throws IOException {
+            send((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return 不含换行符的一行
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                line.write(b);
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] data = new byte[length];
+            new DataInputStream(in).readFully(data);
+            return data;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                sendLine("\\quit");
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -11,25 +11,34 @@ public class ChatHandler implements Runnable{
     /** 服务器类 */
     private ChatServer server;
 
+    /** 连接 id，在服务器的连接表中唯一标识该客户端 */
+    private final long id;
+
     /** 当前客户端 Socket */
     private Socket socket;
 
-    public ChatHandler(ChatServer server, Socket socket) {
+    public ChatHandler(ChatServer server, long id, Socket socket) {
         this.server = server;
+        this.id = id;
         this.socket = socket;
     }
 
     @Override
     public void run() {
+        // 登录的用户名，未登录时为 null
+        String user = null;
         try {
             // 存储新上线用户
-            server.addClient(socket);
+            server.addClient(id, socket);
 
             // 读取用户发送的消息
             BufferedReader reader = new BufferedReader(
                     new InputStreamReader(socket.getInputStream())
             );
 
+            // 该客户端的发送限速
+            TokenBucket bucket = server.newClientBucket();
+
             String msg = null;
             while ((msg = reader.readLine()) != null) {
                 // 检查用户是否退出
@@ -37,17 +46,31 @@ public class ChatHandler implements Runnable{
                     break;
                 }
 
+                // 登录，在当前线程中写出离线消息
+                if (user == null && (user = server.parseLogin(msg)) != null) {
+                    server.login(id, socket, user);
+                    continue;
+                }
+
+                // 超速时在此等待，期间不再读取该客户端的消息
+                server.awaitPermit(bucket);
+
                 String fwdMsg = "客户端[" + socket.getPort() + "]：" + msg + "\n";
                 System.out.print(fwdMsg);
 
                 // 转发消息至其他在线用户
-                server.forwardMessage(socket, fwdMsg);
+                server.forwardMessage(id, fwdMsg);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            if (user != null) {
+                server.logout(user);
+            }
             try {
-                server.removeClient(socket);
+                server.removeClient(id, socket);
             } catch (IOException e) {
                 e.printStackTrace();
             }
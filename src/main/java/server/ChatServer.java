@@ -8,10 +8,23 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 
 //服务端的主线程，负责启动服务端、接收客户端请求、存储当前在线客户端、为客户端新建处理线程等
@@ -21,20 +34,67 @@ public class ChatServer {
     private int SERVER_PORT = 8080;
     /** 客户端退出标志（客户端发送\quit表示退出聊天室 */
     private final String QUIT = "\\quit";
+    /** 登录命令（客户端发送"\\login 用户名"，登录后离线期间的消息会在下次登录时送达） */
+    private final String LOGIN = "\\login ";
+    /** 用户名的最大长度 */
+    private static final int MAX_USER_LENGTH = 32;
     /** 服务端 Socket */
     private ServerSocket serverSocket;
     /**
      * 存储已连接的客户端
-     * key：客户端的端口号
-     * value：向该端口发信息所使用的 Writer
+     * key：连接 id，按接入顺序递增，不会重复（不同主机的客户端可能使用相同的端口号）
+     * value：向该客户端发信息所使用的 Writer
+     * 添加和删除互斥，转发消息时无锁遍历
      */
-    private Map<Integer, Writer> connectedClients;
+    private final ConnectionTable<Writer> connectedClients = new ConnectionTable<>();
+    /** 最近分配的连接 id，只在 accept 线程中访问 */
+    private long lastConnectionId;
+
+    /** 最大连接数，达到上限后暂停 accept */
+    private static final int MAX_CONNECTIONS = 1000;
+    /** 每秒最多接入的新连接数 */
+    private static final int ACCEPT_RATE = 200;
+    /** 新连接的突发容量 */
+    private static final int ACCEPT_BURST = 50;
+    /** 每个客户端每秒最多发送的消息数 */
+    private static final int CLIENT_RATE = 10;
+    /** 每个客户端的突发容量 */
+    private static final int CLIENT_BURST = 20;
+    /** 聊天室每秒最多转发的消息数 */
+    private static final int ROOM_RATE = 1000;
+    /** 聊天室的突发容量 */
+    private static final int ROOM_BURST = 2000;
+
+    /** 剩余可接入的连接数 */
+    private final Semaphore connectionPermits = new Semaphore(MAX_CONNECTIONS);
+    /** 新连接的接入限速 */
+    private final TokenBucket acceptBucket = new TokenBucket(ACCEPT_RATE, ACCEPT_BURST);
+    /** 聊天室（所有客户端共享）的转发限速 */
+    private final TokenBucket roomBucket = new TokenBucket(ROOM_RATE, ROOM_BURST);
+
+    /** 聊天室人数达到该值时并行广播，可通过系统属性 fanout.threshold 配置 */
+    private static final int FAN_OUT_THRESHOLD = Integer.getInteger("fanout.threshold", 200);
+    /** 并行广播使用的线程池 */
+    private final ForkJoinPool fanOutPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    /** 广播耗时统计 */
+    private final FanOutStats fanOutStats = new FanOutStats();
+
+    /** 在线用户及其连接数，同一用户可以同时有多个连接 */
+    private final Map<String, Integer> onlineUsers = new HashMap<>();
+    /** 离线消息存储 */
+    private final OfflineStore offlineStore = new OfflineStore(Paths.get("offline"));
+    /**
+     * 正在取回离线消息的客户端，key：该客户端的 Writer，value：取回期间转发给它的消息，离线消息写完后再写入
+     * 读写 value 需持有对应 Writer 的锁
+     */
+    private final Map<Writer, Queue<String>> heldMessages = new ConcurrentHashMap<>();
+    /** 取回期间最多暂存的消息数，超过后丢弃最早的消息 */
+    private static final int MAX_HELD_MESSAGES = 1000;
 
     /**
      * 无参构造
      */
     public ChatServer() {
-        connectedClients = new HashMap<>();
     }
 
 //    /** 原生线程池 */
@@ -57,49 +117,187 @@ public class ChatServer {
     }
     /**
      * 添加新在线客户端
+     * @param id 连接 id
      * @param socket 新增客户端的socket
      * @throws IOException
      */
-    public synchronized void addClient(Socket socket) throws IOException{
+    public synchronized void addClient(long id, Socket socket) throws IOException{
         if(socket!=null){
             int port=socket.getPort();
             BufferedWriter writer=new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            connectedClients.put(port,writer);
+            connectedClients.put(id,writer);
             System.out.println("客户端[" + port + "]已连接到服务器");
         }
     }
     /**
      * 移除已下线客户端
+     * @param id 连接 id
      * @param socket 已下线的客户端socket
      * @throws IOException
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
+    public synchronized void removeClient(long id, Socket socket) throws IOException {
         if (socket != null) {
             int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                connectedClients.get(port).close();
+            Writer writer = connectedClients.remove(id);
+            if (writer != null) {
+                writer.close();
             }
-            connectedClients.remove(port);
+            connectionPermits.release();
             System.out.println("客户端[" + port + "]已断开连接");
         }
     }
 
     /**
-     * 转发信息给其他所有在线客户端
-     * @param socket 发送信息的客户端
-     * @param fwdMsg 该客户端发送的信息
+     * 判断客户端是否发送了登录命令
+     * @param msg 客户端发送的消息
+     * @return 登录的用户名，不是登录命令时返回 null
+     */
+    public String parseLogin(String msg) {
+        if (!msg.startsWith(LOGIN)) {
+            return null;
+        }
+        String user = msg.substring(LOGIN.length()).trim();
+        return user.isEmpty() || user.length() > MAX_USER_LENGTH ? null : user;
+    }
+
+    /**
+     * 用户登录：该用户第一个连接上线时，分批取回离线期间的消息
+     * 消息在存储线程中读取，交给调用线程（该客户端的 ChatHandler）写出，客户端不读取时不会阻塞存储线程；
+     * 取回期间转发给该客户端的消息暂存，排在离线消息之后写出
+     * @param id 连接 id
+     * @param socket 登录的客户端
+     * @param user 用户名
      * @throws IOException
+     * @throws InterruptedException
      */
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException {
-        for (Integer id : connectedClients.keySet()) {
-            if (!id.equals(socket.getPort())) {
-                Writer writer = connectedClients.get(id);
-                writer.write(fwdMsg);
+    public void login(long id, Socket socket, String user) throws IOException, InterruptedException {
+        System.out.println("客户端[" + socket.getPort() + "]登录：" + user);
+        Writer writer = connectedClients.get(id);
+        // 离线消息，空的一批表示已全部取回（取回的每一批都不为空）
+        BlockingQueue<List<byte[]>> batches = new LinkedBlockingQueue<>();
+        synchronized (this) {
+            if (onlineUsers.merge(user, 1, Integer::sum) > 1) {
+                return;
+            }
+            synchronized (writer) {
+                heldMessages.put(writer, new ArrayDeque<>());
+            }
+            CompletableFuture<Void> done = offlineStore.drain(user, batches::add);
+            done.whenComplete((v, e) -> batches.add(Collections.<byte[]>emptyList()));
+        }
+        try {
+            List<byte[]> batch;
+            while (!(batch = batches.take()).isEmpty()) {
+                synchronized (writer) {
+                    for (byte[] msg : batch) {
+                        writer.write(new String(msg, StandardCharsets.UTF_8));
+                    }
+                    writer.flush();
+                }
+            }
+        } finally {
+            // 写完离线消息（或写入出错）后不再暂存，写出取回期间收到的消息
+            synchronized (writer) {
+                Queue<String> held = heldMessages.remove(writer);
+                for (String msg : held) {
+                    writer.write(msg);
+                }
                 writer.flush();
             }
         }
     }
 
+    /**
+     * 用户的最后一个连接断开后，此后的消息保存到其离线邮箱
+     * @param user 用户名
+     */
+    public synchronized void logout(String user) {
+        if (onlineUsers.merge(user, -1, Integer::sum) == 0) {
+            onlineUsers.remove(user);
+            offlineStore.offline(user);
+        }
+    }
+
+    /**
+     * 为新连接的客户端创建令牌桶
+     */
+    public TokenBucket newClientBucket() {
+        return new TokenBucket(CLIENT_RATE, CLIENT_BURST);
+    }
+
+    /**
+     * 等待客户端和聊天室的令牌都可用，超速时阻塞当前线程（即暂停读取该客户端）
+     * @param clientBucket 该客户端的令牌桶
+     * @throws InterruptedException
+     */
+    public void awaitPermit(TokenBucket clientBucket) throws InterruptedException {
+        long now = System.nanoTime();
+        while (true) {
+            if (clientBucket.tryAcquire(now)) {
+                if (roomBucket.tryAcquire(now)) {
+                    return;
+                }
+                // 聊天室超速：归还客户端的令牌，等待期间不占用该客户端的额度
+                clientBucket.release();
+            }
+            long wait = Math.max(clientBucket.nanosUntilAvailable(now), roomBucket.nanosUntilAvailable(now));
+            TimeUnit.NANOSECONDS.sleep(Math.max(wait, 1));
+            now = System.nanoTime();
+        }
+    }
+
+    private void await(TokenBucket bucket) throws InterruptedException {
+        long now = System.nanoTime();
+        while (!bucket.tryAcquire(now)) {
+            TimeUnit.NANOSECONDS.sleep(Math.max(bucket.nanosUntilAvailable(now), 1));
+            now = System.nanoTime();
+        }
+    }
+
+    /**
+     * 转发信息给其他所有在线客户端
+     * 不持有服务器的锁，多个客户端可以同时转发；同一个 Writer 的写入由 Writer 自身的锁保证完整
+     * 人数达到 FAN_OUT_THRESHOLD 时按连接表的槽位区间拆分给 fanOutPool 并行写入，当前线程等待全部写完再返回，
+     * 因此同一客户端的消息仍按顺序送达
+     * @param senderId 发送信息的客户端的连接 id
+     * @param fwdMsg 该客户端发送的信息
+     */
+    public void forwardMessage(long senderId, String fwdMsg) {
+        long start = System.nanoTime();
+        int recipients = connectedClients.size() - 1;
+        ConnectionTable.Visitor<Writer> visitor = (id, writer) -> {
+            if (id != senderId) {
+                try {
+                    synchronized (writer) {
+                        Queue<String> held = heldMessages.get(writer);
+                        if (held != null) {
+                            // 该客户端正在取回离线消息，由其 ChatHandler 在写完离线消息后写出
+                            if (held.size() == MAX_HELD_MESSAGES) {
+                                held.poll();
+                            }
+                            held.add(fwdMsg);
+                            return;
+                        }
+                        writer.write(fwdMsg);
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    // 该客户端已断开，由其 ChatHandler 负责移除
+                    e.printStackTrace();
+                }
+            }
+        };
+        boolean parallel = recipients >= FAN_OUT_THRESHOLD;
+        if (parallel) {
+            fanOutPool.invoke(new FanOutTask<>(connectedClients.snapshot(), visitor, fanOutPool.getParallelism()));
+        } else {
+            connectedClients.forEach(visitor);
+        }
+        fanOutStats.record(parallel, recipients, System.nanoTime() - start);
+        // 保存到离线用户的邮箱（由存储线程写入磁盘）
+        offlineStore.append(fwdMsg.getBytes(StandardCharsets.UTF_8));
+    }
+
 
     /**
      * 服务端主要逻辑
@@ -108,19 +306,25 @@ public class ChatServer {
         try {
             // 为服务端绑定端口
             serverSocket = new ServerSocket(SERVER_PORT);
+            offlineStore.open();
             System.out.println("服务器启动，监听端口：" + SERVER_PORT + "...");
 
             while (true) {
+                // 达到连接上限或接入超速时，暂停 accept，新连接留在内核的 backlog 中
+                connectionPermits.acquire();
+                await(acceptBucket);
                 // accept()方法是阻塞式的
                 Socket socket = serverSocket.accept();
                 // 向线程池提交任务
 //                executorService.execute(new ChatHandler(this, socket));
-                myFixedThreadPool.submit(new ChatHandler(this, socket));
+                myFixedThreadPool.submit(new ChatHandler(this, ++lastConnectionId, socket));
                 // 有客户端连接后，为它创建一个ChatHandler线程
 //                new Thread(new ChatHandler(this, socket)).start();
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             close();
         }
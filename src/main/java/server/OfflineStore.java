@@ -0,0 +1,548 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 离线消息存储：用户离线期间的消息保存在本地只追加的日志文件中，重新上线后分批取回
+ * 所有文件读写和索引维护都在一个专用线程中执行，调用方（事件循环、ChatHandler）只提交任务，不会被磁盘 IO 阻塞
+ *
+ * 日志记录格式：
+ * MESSAGE：类型(1) 时间(8) 长度(4) 消息内容 —— 每条消息只写一次，由所有离线用户的邮箱共同引用
+ * OFFLINE：类型(1) 时间(8) 长度(2) 用户名 —— 用户离线，此后的消息进入其邮箱
+ * DRAINED：类型(1) 时间(8) 长度(2) 用户名 —— 邮箱已关闭（用户上线取回，或离线太久而过期）
+ * 启动时按顺序重放日志即可恢复所有邮箱，重放只读取记录头，之后把最新的消息读入缓存，用户集中重新上线时大多从内存取回
+ *
+ * 每个邮箱都是从其第一条消息开始到日志末尾的全部消息，因此最早的第一条消息之前的数据都已无用。
+ * 无用数据达到一定比例或日志写入时间较长时，把仍被引用的消息和邮箱重写到新文件中，再原子地替换旧文件
+ */
+public class OfflineStore {
+
+    private static final byte MESSAGE = 1;
+    private static final byte OFFLINE = 2;
+    private static final byte DRAINED = 3;
+
+    /** 每个邮箱最多保存的消息数，超过后丢弃最早的消息 */
+    private static final int MAX_MESSAGES_PER_USER = 1000;
+    /** 消息的保存期限，过期的消息从邮箱中删除 */
+    private static final long MESSAGE_TTL = TimeUnit.DAYS.toMillis(7);
+    /** 邮箱的保存期限，用户离线超过该时间后删除其邮箱 */
+    private static final long MAILBOX_TTL = TimeUnit.DAYS.toMillis(30);
+    /** 内存缓存的消息总字节数上限，超过后淘汰最久未使用的消息 */
+    private static final long MAX_CACHE_BYTES = 64L << 20;
+    /** 每批取回的消息数 */
+    private static final int BATCH_SIZE = 64;
+
+    /** 检查过期邮箱和压缩日志的间隔 */
+    private static final long MAINTAIN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    /** 无用数据占日志的比例达到该值时压缩 */
+    private static final double COMPACT_RATIO = 0.5;
+    /** 无用数据少于该字节数时不按比例压缩，避免频繁重写小文件 */
+    private static final long MIN_COMPACT_BYTES = 1L << 20;
+    /** 距上次压缩超过该时间后，只要有无用数据就压缩 */
+    private static final long MAX_SEGMENT_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /** 日志文件 */
+    private final Path path;
+    /** 压缩时写入的新文件，完成后替换 path */
+    private final Path compactPath;
+    /** 日志文件的 channel，只在存储线程中访问 */
+    private FileChannel log;
+    /** 日志文件的末尾位置 */
+    private long end;
+    /** 上次压缩（或启动）后第一条仍被引用的消息的位置，此前的数据不计为无用数据 */
+    private long compactedStart;
+    /** 上次压缩（或启动）的时间 */
+    private long compactedAt;
+    /** 离线用户的邮箱，key：用户名 */
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    /** 消息内容的 LRU 缓存，key：消息在日志中的位置；邮箱共用同一份缓存，热点邮箱的消息不会重复保存 */
+    private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    /** 缓存中消息的总字节数 */
+    private long cacheBytes;
+    /** 写日志时使用的 Buffer */
+    private ByteBuffer header = ByteBuffer.allocate(1 + 8 + 4);
+
+    /** 执行所有存储操作的线程 */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "OfflineStore");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 一个离线用户的邮箱，按时间顺序保存对日志中消息的引用（环形数组）
+     */
+    private static final class Mailbox {
+        /** 用户离线的时间 */
+        final long since;
+        long[] offsets = new long[16];
+        int[] lengths = new int[16];
+        long[] times = new long[16];
+        /** 最早一条消息在数组中的下标 */
+        int head;
+        int count;
+
+        Mailbox(long since) {
+            this.since = since;
+        }
+
+        void add(long offset, int length, long time) {
+            if (count == offsets.length) {
+                if (count == MAX_MESSAGES_PER_USER) {
+                    // 邮箱已满，覆盖最早的消息
+                    head = (head + 1) % count;
+                    count--;
+                } else {
+                    grow(Math.min(count * 2, MAX_MESSAGES_PER_USER));
+                }
+            }
+            int i = (head + count) % offsets.length;
+            offsets[i] = offset;
+            lengths[i] = length;
+            times[i] = time;
+            count++;
+        }
+
+        /**
+         * 删除早于 before 的消息，消息按时间顺序保存，只需从最早的一条开始检查
+         */
+        void expire(long before) {
+            while (count > 0 && times[head] < before) {
+                head = (head + 1) % offsets.length;
+                count--;
+            }
+        }
+
+        /**
+         * @return 最早一条消息在日志中的位置，邮箱为空时返回 Long.MAX_VALUE
+         */
+        long first() {
+            return count == 0 ? Long.MAX_VALUE : offsets[head];
+        }
+
+        private void grow(int capacity) {
+            long[] o = new long[capacity];
+            int[] l = new int[capacity];
+            long[] t = new long[capacity];
+            for (int j = 0; j < count; j++) {
+                int i = (head + j) % offsets.length;
+                o[j] = offsets[i];
+                l[j] = lengths[i];
+                t[j] = times[i];
+            }
+            offsets = o;
+            lengths = l;
+            times = t;
+            head = 0;
+        }
+    }
+
+    /**
+     * @param dir 存放日志文件的目录
+     */
+    public OfflineStore(Path dir) {
+        this.path = dir.resolve("offline.log");
+        this.compactPath = dir.resolve("offline.log.compact");
+    }
+
+    /**
+     * 打开日志文件并重放，恢复离线用户的邮箱（在存储线程中异步执行，之后提交的操作排在其后）
+     * 之后定期删除过期的邮箱和消息，并在需要时压缩日志
+     */
+    public void open() {
+        executor.execute(() -> {
+            try {
+                Files.createDirectories(path.getParent());
+                // 压缩时进程退出留下的不完整文件，旧文件仍然完整
+                Files.deleteIfExists(compactPath);
+                log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                replay();
+                if (mailboxes.isEmpty()) {
+                    // 没有离线用户，日志中的消息都已无用
+                    truncate();
+                }
+                warmCache();
+                compactedStart = liveStart();
+                compactedAt = System.currentTimeMillis();
+                System.out.println("离线消息：恢复 " + mailboxes.size() + " 个邮箱，日志 " + end + " 字节，缓存 " + cacheBytes + " 字节");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.scheduleWithFixedDelay(this::maintain, MAINTAIN_INTERVAL, MAINTAIN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 用户离线，此后的消息保存到其邮箱
+     * @param user 用户名
+     */
+    public void offline(String user) {
+        executor.execute(() -> {
+            if (mailboxes.containsKey(user)) {
+                return;
+            }
+            try {
+                long time = System.currentTimeMillis();
+                write(userRecord(OFFLINE, user, time));
+                mailboxes.put(user, new Mailbox(time));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * 保存一条消息到所有离线用户的邮箱，没有离线用户时不写磁盘
+     * @param msg 消息内容（调用方不能再修改）
+     */
+    public void append(byte[] msg) {
+        executor.execute(() -> {
+            if (mailboxes.isEmpty() || log == null) {
+                return;
+            }
+            try {
+                long time = System.currentTimeMillis();
+                long offset = end;
+                header.clear();
+                header.put(MESSAGE).putLong(time).putInt(msg.length);
+                header.flip();
+                write(header);
+                write(ByteBuffer.wrap(msg));
+                for (Mailbox mailbox : mailboxes.values()) {
+                    mailbox.add(offset, msg.length, time);
+                }
+                cache(offset, msg);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * 用户上线，分批取回其邮箱中的消息
+     * @param user 用户名
+     * @param receiver 接收每一批消息，在存储线程中调用
+     * @return 最后一批消息交给 receiver 之后完成（没有离线消息或读取出错时同样完成）
+     */
+    public CompletableFuture<Void> drain(String user, Consumer<List<byte[]>> receiver) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                drainMailbox(user, receiver);
+            } finally {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    private void drainMailbox(String user, Consumer<List<byte[]>> receiver) {
+        Mailbox mailbox = mailboxes.remove(user);
+        if (mailbox == null || log == null) {
+            return;
+        }
+        try {
+            write(userRecord(DRAINED, user, System.currentTimeMillis()));
+            mailbox.expire(System.currentTimeMillis() - MESSAGE_TTL);
+            List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+            for (int j = 0; j < mailbox.count; j++) {
+                int i = (mailbox.head + j) % mailbox.offsets.length;
+                batch.add(read(mailbox.offsets[i], mailbox.lengths[i]));
+                if (batch.size() == BATCH_SIZE) {
+                    receiver.accept(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                receiver.accept(batch);
+            }
+            if (mailboxes.isEmpty()) {
+                truncate();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 定期维护：删除离线太久的邮箱和过期的消息，无用数据较多时压缩日志
+     */
+    private void maintain() {
+        if (log == null) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Mailbox>> it = mailboxes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Mailbox> entry = it.next();
+                if (now - entry.getValue().since > MAILBOX_TTL) {
+                    write(userRecord(DRAINED, entry.getKey(), now));
+                    it.remove();
+                } else {
+                    entry.getValue().expire(now - MESSAGE_TTL);
+                }
+            }
+            if (mailboxes.isEmpty()) {
+                if (end > 0) {
+                    truncate();
+                }
+                return;
+            }
+            long dead = liveStart() - compactedStart;
+            if (dead > 0 && (dead >= MIN_COMPACT_BYTES && dead >= end * COMPACT_RATIO
+                    || now - compactedAt >= MAX_SEGMENT_AGE)) {
+                compact(now);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return 第一条仍被引用的消息的位置，此前的消息已不在任何邮箱中；没有消息时返回日志末尾
+     */
+    private long liveStart() {
+        long start = end;
+        for (Mailbox mailbox : mailboxes.values()) {
+            start = Math.min(start, mailbox.first());
+        }
+        return start;
+    }
+
+    /**
+     * 压缩日志：按顺序复制仍被引用的消息，每个邮箱的 OFFLINE 记录写在其第一条消息之前，
+     * 空邮箱的写在最后，重放新文件得到的邮箱与压缩前相同；写完后原子地替换旧文件，再重放新文件
+     */
+    private void compact(long now) throws IOException {
+        long before = end;
+        List<Map.Entry<String, Mailbox>> order = new ArrayList<>(mailboxes.entrySet());
+        order.sort(Comparator.comparingLong(entry -> entry.getValue().first()));
+        try (FileChannel out = FileChannel.open(compactPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int next = 0;
+            long position = liveStart();
+            while (position < before) {
+                header.clear();
+                header.limit(1 + 8);
+                readFully(header, position);
+                byte type = header.get(0);
+                if (type == MESSAGE) {
+                    while (next < order.size() && order.get(next).getValue().first() == position) {
+                        Map.Entry<String, Mailbox> entry = order.get(next++);
+                        writeFully(out, userRecord(OFFLINE, entry.getKey(), entry.getValue().since));
+                    }
+                    header.limit(header.capacity());
+                    readFully(header, position + 1 + 8);
+                    long length = header.capacity() + header.getInt(1 + 8);
+                    long copied = 0;
+                    while (copied < length) {
+                        copied += log.transferTo(position + copied, length - copied, out);
+                    }
+                    position += length;
+                } else {
+                    // 旧的 OFFLINE / DRAINED 记录不再需要，邮箱由新写入的 OFFLINE 记录表示
+                    ByteBuffer length = ByteBuffer.allocate(2);
+                    readFully(length, position + 1 + 8);
+                    position += 1 + 8 + 2 + (length.getShort(0) & 0xFFFF);
+                }
+            }
+            while (next < order.size()) {
+                Map.Entry<String, Mailbox> entry = order.get(next++);
+                writeFully(out, userRecord(OFFLINE, entry.getKey(), entry.getValue().since));
+            }
+            out.force(true);
+        }
+        Files.move(compactPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.close();
+        log = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 消息的位置都已改变，按新文件重建邮箱
+        mailboxes.clear();
+        cache.clear();
+        cacheBytes = 0;
+        replay();
+        warmCache();
+        compactedStart = liveStart();
+        compactedAt = now;
+        System.out.println("离线消息：日志压缩 " + before + " -> " + end + " 字节");
+    }
+
+    /**
+     * 读取一条消息，优先从缓存读取
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        byte[] msg = cache.get(offset);
+        if (msg != null) {
+            return msg;
+        }
+        msg = new byte[length];
+        readFully(ByteBuffer.wrap(msg), offset + header.capacity());
+        cache(offset, msg);
+        return msg;
+    }
+
+    private void cache(long offset, byte[] msg) {
+        if (cache.put(offset, msg) == null) {
+            cacheBytes += msg.length;
+        }
+        Iterator<byte[]> it = cache.values().iterator();
+        while (cacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+            cacheBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * 按顺序重放日志，重建邮箱；只读取记录头，跳过消息内容
+     * 文件末尾不完整的记录（写入时进程退出）被截掉
+     */
+    private void replay() throws IOException {
+        long size = log.size();
+        long position = 0;
+        ByteBuffer user = ByteBuffer.allocate(0xFFFF);
+        try {
+            while (position < size) {
+                header.clear();
+                header.limit(1 + 8);
+                readFully(header, position);
+                byte type = header.get(0);
+                long time = header.getLong(1);
+                if (type == MESSAGE) {
+                    header.limit(header.capacity());
+                    readFully(header, position + 1 + 8);
+                    int length = header.getInt(1 + 8);
+                    if (position + header.capacity() + length > size) {
+                        throw new EOFException();
+                    }
+                    for (Mailbox mailbox : mailboxes.values()) {
+                        mailbox.add(position, length, time);
+                    }
+                    position += header.capacity() + length;
+                } else if (type == OFFLINE || type == DRAINED) {
+                    ByteBuffer length = ByteBuffer.allocate(2);
+                    readFully(length, position + 1 + 8);
+                    user.clear();
+                    user.limit(length.getShort(0) & 0xFFFF);
+                    readFully(user, position + 1 + 8 + 2);
+                    user.flip();
+                    String name = StandardCharsets.UTF_8.decode(user).toString();
+                    if (type == OFFLINE) {
+                        mailboxes.put(name, new Mailbox(time));
+                    } else {
+                        mailboxes.remove(name);
+                    }
+                    position += 1 + 8 + 2 + user.limit();
+                } else {
+                    throw new EOFException();
+                }
+            }
+        } catch (EOFException e) {
+            log.truncate(position);
+        }
+        end = position;
+    }
+
+    /**
+     * 预热缓存：从日志末尾向前选取仍被引用的消息，总量不超过 MAX_CACHE_BYTES，再按时间顺序读入缓存，
+     * 最新的消息最后放入，最晚被淘汰
+     */
+    private void warmCache() throws IOException {
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int count = 0;
+        // 第一条仍被引用的消息之后的消息都在某个邮箱中
+        long position = liveStart();
+        while (position < end) {
+            header.clear();
+            header.limit(1 + 8);
+            readFully(header, position);
+            if (header.get(0) == MESSAGE) {
+                header.limit(header.capacity());
+                readFully(header, position + 1 + 8);
+                int length = header.getInt(1 + 8);
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                offsets[count] = position;
+                lengths[count] = length;
+                count++;
+                position += header.capacity() + length;
+            } else {
+                ByteBuffer length = ByteBuffer.allocate(2);
+                readFully(length, position + 1 + 8);
+                position += 1 + 8 + 2 + (length.getShort(0) & 0xFFFF);
+            }
+        }
+        int from = count;
+        long bytes = 0;
+        while (from > 0 && bytes + lengths[from - 1] <= MAX_CACHE_BYTES) {
+            bytes += lengths[--from];
+        }
+        for (int i = from; i < count; i++) {
+            read(offsets[i], lengths[i]);
+        }
+    }
+
+    private ByteBuffer userRecord(byte type, String user, long time) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 2 + name.length);
+        record.put(type).putLong(time).putShort((short) name.length).put(name);
+        record.flip();
+        return record;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            end += log.write(buffer, end);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = log.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * 所有邮箱都已取回时清空日志文件
+     */
+    private void truncate() throws IOException {
+        log.truncate(0);
+        end = 0;
+        cache.clear();
+        cacheBytes = 0;
+        compactedStart = 0;
+    }
+}